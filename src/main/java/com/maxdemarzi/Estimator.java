@@ -0,0 +1,218 @@
+package com.maxdemarzi;
+
+import com.maxdemarzi.graph.AdjacencySnapshot;
+import com.maxdemarzi.results.EstimateResult;
+import com.maxdemarzi.results.FindMotifs;
+import org.neo4j.graphdb.*;
+import org.neo4j.kernel.impl.store.id.IdGeneratorFactory;
+import org.neo4j.kernel.impl.store.id.IdType;
+import org.neo4j.kernel.internal.GraphDatabaseAPI;
+import org.neo4j.logging.Log;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+
+/*
+ * Predicts the size and duration of a motifs run without running it.
+ * The relationship count comes from the count store, degrees from a uniform sample of node ids,
+ * and the run time from counting every motif of a few relationships sampled from those nodes.
+ * Each of those is counted within timedTimeout, so sampling a hub can't take as long as the run itself.
+ * Supernode relationships are left out of the sample and costed by how supernodeStrategy handles them.
+ */
+public class Estimator {
+    private final GraphDatabaseService db;
+    private final Log log;
+
+    public Estimator(GraphDatabaseService db, Log log) {
+        this.db = db;
+        this.log = log;
+    }
+
+    public EstimateResult estimate(String type, MotifsConfig config) throws InterruptedException {
+        RelationshipType relationshipType = RelationshipType.withName(type);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int threads = Runtime.getRuntime().availableProcessors();
+
+        long relationships;
+        try (Result result = db.execute("MATCH ()-[r:`" + type.replace("`", "``") + "`]->() RETURN count(r) AS count")) {
+            relationships = (Long) result.next().get("count");
+        }
+        long highId = ((GraphDatabaseAPI) db).getDependencyResolver()
+                .resolveDependency(IdGeneratorFactory.class).get(IdType.NODE).getHighId();
+
+        // Sample node ids uniformly, the ones that miss tell us how sparse the id space is
+        List<Node> sample = new ArrayList<>();
+        long attempts = 0;
+        while (highId > 0 && sample.size() < config.getSampleSize() && attempts < config.getSampleSize() * 10L) {
+            attempts++;
+            try {
+                sample.add(db.getNodeById(random.nextLong(highId)));
+            } catch (NotFoundException e) {
+                // deleted or never used id
+            }
+        }
+        long nodes = attempts == 0 ? 0 : highId * sample.size() / attempts;
+
+        int[] typeDegrees = new int[sample.size()];
+        long endpoints = 0;
+        long supernodeEndpoints = 0;
+        // Degrees of the supernodes weighted by their relationships of the type, to average over those relationships
+        long supernodeDegrees = 0;
+        Node hub = null;
+        long typedNodes = 0;
+        for (int i = 0; i < sample.size(); i++) {
+            typeDegrees[i] = sample.get(i).getDegree(relationshipType);
+            endpoints += typeDegrees[i];
+            if (typeDegrees[i] > 0) {
+                typedNodes++;
+                int degree = sample.get(i).getDegree();
+                if (config.isSupernode(degree)) {
+                    supernodeEndpoints += typeDegrees[i];
+                    supernodeDegrees += (long) typeDegrees[i] * degree;
+                    hub = sample.get(i);
+                }
+            }
+        }
+        // A relationship is handled as a supernode relationship if either endpoint is one
+        double supernodeFraction = endpoints == 0 ? 0 : (double) supernodeEndpoints / endpoints;
+        long supernodeRelationships = Math.round(relationships * (1 - Math.pow(1 - supernodeFraction, 2)));
+        long snapshotNodes = sample.isEmpty() ? 0 : nodes * typedNodes / sample.size();
+
+        // Time every motif on relationships picked in proportion to degree, so uniformly over relationships.
+        // Each gets timedTimeout in its own transaction, hubs that take longer are cut off rather than waited for.
+        Map<String, Long> nanos = new TreeMap<>();
+        long countBytes = 0;
+        int timed = 0;
+        int cutOff = 0;
+        ExecutorService timer = Executors.newCachedThreadPool();
+        try {
+            for (int tries = 0; endpoints > 0 && timed + cutOff < config.getTimedSample() && tries < config.getTimedSample() * 10; tries++) {
+                long pick = random.nextLong(endpoints);
+                int node = 0;
+                while (pick >= typeDegrees[node]) {
+                    pick -= typeDegrees[node++];
+                }
+                Relationship relationship = null;
+                for (Relationship r : sample.get(node).getRelationships(relationshipType)) {
+                    if (pick-- == 0) {
+                        relationship = r;
+                        break;
+                    }
+                }
+                if (relationship == null || config.isSupernode(Math.max(relationship.getStartNode().getDegree(),
+                        relationship.getEndNode().getDegree()))) {
+                    continue;
+                }
+
+                long relId = relationship.getId();
+                AtomicReference<Transaction> transaction = new AtomicReference<>();
+                Future<Timing> future = timer.submit(() -> time(relId, config.getTimedTimeout(), transaction));
+                try {
+                    Timing timing = future.get(config.getTimedTimeout(), TimeUnit.MILLISECONDS);
+                    timing.nanos.forEach((family, time) -> nanos.merge(family, time, Long::sum));
+                    countBytes += timing.bytes;
+                    timed++;
+                } catch (TimeoutException e) {
+                    cutOff++;
+                    future.cancel(true);
+                    Transaction tx = transaction.get();
+                    if (tx != null) {
+                        tx.terminate();
+                    }
+                } catch (ExecutionException e) {
+                    if (!(e.getCause() instanceof RuntimeException && FindMotifs.terminated((RuntimeException) e.getCause()))) {
+                        throw new IllegalStateException("Timing relationship " + relId + " failed", e.getCause());
+                    }
+                    cutOff++;
+                }
+            }
+        } finally {
+            timer.shutdownNow();
+        }
+
+        // Extrapolate from the relationships that finished, the ones cut off took at least timedTimeout each
+        Map<String, Object> runtimeMillis = new LinkedHashMap<>();
+        long counted = relationships - supernodeRelationships;
+        double cutOffShare = timed + cutOff == 0 ? 0 : (double) cutOff / (timed + cutOff);
+        long total = 0;
+        for (Map.Entry<String, Long> entry : nanos.entrySet()) {
+            long millis = Math.round(counted * (1 - cutOffShare) * entry.getValue() / timed / threads / 1e6);
+            runtimeMillis.put(entry.getKey(), millis);
+            total += millis;
+        }
+        if (cutOff > 0) {
+            long millis = Math.round(counted * cutOffShare * config.getTimedTimeout() / threads);
+            runtimeMillis.put("cutOff", millis);
+            total += millis;
+        }
+        long supernodeMillis = supernodeMillis(config, supernodeRelationships, threads,
+                supernodeEndpoints == 0 ? 0 : (double) supernodeDegrees / supernodeEndpoints, hub);
+        runtimeMillis.put("supernode", supernodeMillis);
+        total += supernodeMillis;
+        runtimeMillis.put("total", total);
+
+        // Roaring keeps at most two bytes per id in its array containers, dense runs take less as bitmaps
+        long bucketBytes = relationships * 2;
+        long snapshotBytes = AdjacencySnapshot.sizeInBytes(type, snapshotNodes, relationships);
+        long rowBytes = 2 * (String.valueOf(highId).length() + 1)
+                + (timed == 0 ? 2 * FindMotifs.names().size() : countBytes / timed) + 1;
+        long outputBytes = relationships * rowBytes;
+
+        log.info("Estimated " + type + " from " + sample.size() + " nodes and " + timed + " relationships, "
+                + cutOff + " more cut off after " + config.getTimedTimeout() + "ms");
+        return new EstimateResult(relationships, nodes, supernodeRelationships, bucketBytes, snapshotBytes, outputBytes,
+                runtimeMillis, sample.size(), timed, cutOff);
+    }
+
+    /*
+     * What the supernode relationships add to the run. Skipping them costs next to nothing, approximating scans the
+     * hub's relationships once per relationship, and splitting is bounded by every one of them running to timeout.
+     */
+    private long supernodeMillis(MotifsConfig config, long supernodeRelationships, int threads, double hubDegree, Node hub) {
+        switch (config.getSupernode()) {
+            case APPROXIMATE:
+                return hub == null ? 0 : Math.round(supernodeRelationships * hubDegree * scanNanos(hub, config.getTimedTimeout())
+                        / threads / 1e6);
+            case SPLIT:
+                return supernodeRelationships * config.getTimeout() / threads;
+            default:
+                return 0;
+        }
+    }
+
+    // Time per relationship to scan the relationships of a hub, giving up on the rest after the timeout
+    private static double scanNanos(Node hub, long timeout) {
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(timeout);
+        long scanned = 0;
+        for (Relationship relationship : hub.getRelationships()) {
+            relationship.getOtherNodeId(hub.getId());
+            if (++scanned % 1024 == 0 && System.nanoTime() > deadline) {
+                break;
+            }
+        }
+        return scanned == 0 ? 0 : (double) (System.nanoTime() - start) / scanned;
+    }
+
+    private static class Timing {
+        private final Map<String, Long> nanos = new HashMap<>();
+        private long bytes;
+    }
+
+    // Counts every motif of the relationship by family, in a transaction that times out with the wait for it
+    private Timing time(long relId, long timeout, AtomicReference<Transaction> transaction) {
+        Timing timing = new Timing();
+        try (Transaction tx = db.beginTx(timeout, TimeUnit.MILLISECONDS)) {
+            transaction.set(tx);
+            for (String name : FindMotifs.names()) {
+                long start = System.nanoTime();
+                int count = FindMotifs.count(db, relId, name);
+                timing.nanos.merge(name.substring(0, name.indexOf('_')), System.nanoTime() - start, Long::sum);
+                timing.bytes += String.valueOf(count).length() + 1;
+            }
+            tx.success();
+        }
+        return timing;
+    }
+}
@@ -0,0 +1,262 @@
+package com.maxdemarzi;
+
+import com.maxdemarzi.graph.Motif;
+import org.neo4j.graphdb.*;
+import org.neo4j.graphdb.event.ErrorState;
+import org.neo4j.graphdb.event.KernelEventHandler;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+import org.neo4j.kernel.internal.GraphDatabaseAPI;
+
+import java.io.File;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * Bounded LRU cache of motif counts by relationship id, one per database.
+ *
+ * A motif of k nodes around a relationship only involves nodes within k - 2 hops of its endpoints.
+ * Commits only record the endpoints of the relationships they created or deleted, the next lookup
+ * walks that neighbourhood in its own transaction and drops the entries whose endpoints are in it.
+ * If the neighbourhood is too large to walk, the whole cache is dropped.
+ *
+ * Only commits made on this instance are seen, so on cluster followers and read replicas, where
+ * transactions are applied without running event handlers, entries are never invalidated.
+ */
+public class MotifCache {
+    private static final int CAPACITY = 100_000;
+    private static final int MAX_INVALIDATION_NODES = 10_000;
+    // Keyed by store directory, procedures get a new GraphDatabaseService facade on every call
+    private static final Map<File, MotifCache> caches = new ConcurrentHashMap<>();
+
+    private final LinkedHashMap<Long, Entry> entries;
+    private final Map<Long, Set<Long>> byNode = new HashMap<>();
+    // Endpoints of relationships created or deleted since the last lookup
+    private Set<Long> touched = new HashSet<>();
+    // One lookup walks at a time, the others wait for its entries to be dropped
+    private final Object walking = new Object();
+    // Bumped on every commit, so counts computed before it are not cached after it
+    private long generation;
+    private int radius;
+
+    private static class Entry {
+        private final long start;
+        private final long end;
+        private final Map<String, Long> counts = new HashMap<>();
+
+        Entry(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    private MotifCache(int capacity) {
+        this.entries = new LinkedHashMap<Long, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Entry> eldest) {
+                if (size() > capacity) {
+                    unindex(eldest.getKey(), eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    public static MotifCache forDatabase(GraphDatabaseService db) {
+        return caches.computeIfAbsent(((GraphDatabaseAPI) db).getStoreDir(), storeDir -> {
+            MotifCache cache = new MotifCache(CAPACITY);
+            Invalidator invalidator = cache.new Invalidator();
+            db.registerTransactionEventHandler(invalidator);
+            db.registerKernelEventHandler(new Shutdown(storeDir, cache, db, invalidator));
+            return cache;
+        });
+    }
+
+    static boolean isCached(File storeDir) {
+        return caches.containsKey(storeDir);
+    }
+
+    public synchronized long generation() {
+        return generation;
+    }
+
+    /*
+     * Drops the entries near relationships created or deleted since the last call. Has to run in
+     * a transaction before entries are read, so the commits are visible to the walk.
+     */
+    public void refresh(GraphDatabaseService db) {
+        synchronized (walking) {
+            Set<Long> nodes;
+            int hops;
+            synchronized (this) {
+                if (touched.isEmpty()) {
+                    return;
+                }
+                nodes = touched;
+                touched = new HashSet<>();
+                hops = radius;
+            }
+            drop(walk(db, nodes, hops));
+        }
+    }
+
+    // The cached counts of a relationship, empty if there are none
+    public synchronized Map<String, Long> get(long relId) {
+        Entry entry = entries.get(relId);
+        return entry == null ? Collections.emptyMap() : new HashMap<>(entry.counts);
+    }
+
+    public synchronized void put(long relId, long start, long end, long generation, Map<String, Long> counts) {
+        if (generation != this.generation || counts.isEmpty()) {
+            return;
+        }
+        for (String name : counts.keySet()) {
+            radius = Math.max(radius, Motif.named(name).nodes() - 2);
+        }
+        Entry entry = entries.get(relId);
+        if (entry == null) {
+            entry = new Entry(start, end);
+            entries.put(relId, entry);
+            byNode.computeIfAbsent(start, id -> new HashSet<>()).add(relId);
+            byNode.computeIfAbsent(end, id -> new HashSet<>()).add(relId);
+        }
+        entry.counts.putAll(counts);
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    // Called once a commit is visible, entries cached from here on already count it
+    private synchronized void committed(Set<Long> nodes) {
+        generation++;
+        if (entries.isEmpty()) {
+            return;
+        }
+        touched.addAll(nodes);
+        if (touched.size() > MAX_INVALIDATION_NODES) {
+            touched = new HashSet<>();
+            drop(null);
+        }
+    }
+
+    // Every node within the given hops of the nodes, null when there are too many to walk
+    private static Set<Long> walk(GraphDatabaseService db, Set<Long> nodes, int hops) {
+        List<Long> frontier = new ArrayList<>(nodes);
+        for (int hop = 0; hop < hops && !frontier.isEmpty(); hop++) {
+            List<Long> next = new ArrayList<>();
+            for (Long id : frontier) {
+                Node node;
+                try {
+                    node = db.getNodeById(id);
+                } catch (NotFoundException e) {
+                    continue;
+                }
+                for (Relationship relationship : node.getRelationships()) {
+                    long other = relationship.getOtherNodeId(id);
+                    if (nodes.add(other)) {
+                        next.add(other);
+                    }
+                    if (nodes.size() > MAX_INVALIDATION_NODES) {
+                        return null;
+                    }
+                }
+            }
+            frontier = next;
+        }
+        return nodes;
+    }
+
+    private synchronized void drop(Set<Long> nodes) {
+        if (nodes == null) {
+            entries.clear();
+            byNode.clear();
+            return;
+        }
+        for (Long node : nodes) {
+            Set<Long> relIds = byNode.get(node);
+            if (relIds != null) {
+                for (Long relId : new ArrayList<>(relIds)) {
+                    Entry entry = entries.remove(relId);
+                    if (entry != null) {
+                        unindex(relId, entry);
+                    }
+                }
+            }
+        }
+    }
+
+    private void unindex(long relId, Entry entry) {
+        for (long node : new long[]{entry.start, entry.end}) {
+            Set<Long> relIds = byNode.get(node);
+            if (relIds != null) {
+                relIds.remove(relId);
+                if (relIds.isEmpty()) {
+                    byNode.remove(node);
+                }
+            }
+        }
+    }
+
+    // Collects the endpoints of changed relationships, the walk is left to the next lookup
+    private class Invalidator extends TransactionEventHandler.Adapter<Set<Long>> {
+        @Override
+        public Set<Long> beforeCommit(TransactionData data) {
+            Set<Long> nodes = new HashSet<>();
+            for (Relationship relationship : data.createdRelationships()) {
+                nodes.add(relationship.getStartNodeId());
+                nodes.add(relationship.getEndNodeId());
+            }
+            for (Relationship relationship : data.deletedRelationships()) {
+                nodes.add(relationship.getStartNodeId());
+                nodes.add(relationship.getEndNodeId());
+            }
+            return nodes;
+        }
+
+        @Override
+        public void afterCommit(TransactionData data, Set<Long> nodes) {
+            // Commits that leave every relationship as it was can't change a count
+            if (!nodes.isEmpty()) {
+                committed(nodes);
+            }
+        }
+    }
+
+    // Forgets the cache of a database that shuts down, one started again in the same directory starts empty
+    private static class Shutdown implements KernelEventHandler {
+        private final File storeDir;
+        private final MotifCache cache;
+        private final GraphDatabaseService db;
+        private final Invalidator invalidator;
+
+        Shutdown(File storeDir, MotifCache cache, GraphDatabaseService db, Invalidator invalidator) {
+            this.storeDir = storeDir;
+            this.cache = cache;
+            this.db = db;
+            this.invalidator = invalidator;
+        }
+
+        @Override
+        public void beforeShutdown() {
+            caches.remove(storeDir, cache);
+            db.unregisterTransactionEventHandler(invalidator);
+        }
+
+        @Override
+        public void kernelPanic(ErrorState error) {
+        }
+
+        @Override
+        public Object getResource() {
+            return null;
+        }
+
+        @Override
+        public ExecutionOrder orderComparedTo(KernelEventHandler other) {
+            return ExecutionOrder.DOESNT_MATTER;
+        }
+    }
+}
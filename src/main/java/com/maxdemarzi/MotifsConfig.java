@@ -0,0 +1,114 @@
+package com.maxdemarzi;
+
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+
+public class MotifsConfig {
+    public static final MotifsConfig DEFAULT = new MotifsConfig(Collections.emptyMap());
+
+    // What to do with an anchor relationship touching a node above maxDegree
+    public enum Supernode {
+        // Leave the counts blank and only flag the relationship
+        SKIP,
+        // Fill in the motifs that have a closed form in terms of degrees and common neighbours
+        APPROXIMATE,
+        // Count each motif of the relationship concurrently on a shared pool, within timeout
+        SPLIT
+    }
+
+    private final long maxDegree;
+    private final Supernode supernode;
+    private final long timeout;
+    private final String snapshot;
+    private final int sampleSize;
+    private final int timedSample;
+    private final long timedTimeout;
+    private final int batchSize;
+    private final int shard;
+    private final int shards;
+
+    public MotifsConfig(Map<String, Object> config) {
+        this.maxDegree = ((Number) config.getOrDefault("maxDegree", Long.MAX_VALUE)).longValue();
+        this.supernode = Supernode.valueOf(config.getOrDefault("supernodeStrategy", "skip")
+                .toString().toUpperCase(Locale.ROOT));
+        this.timeout = ((Number) config.getOrDefault("timeout", 60_000L)).longValue();
+        this.snapshot = (String) config.get("snapshot");
+        this.sampleSize = ((Number) config.getOrDefault("sampleSize", 1000L)).intValue();
+        this.timedSample = ((Number) config.getOrDefault("timedSample", 10L)).intValue();
+        this.timedTimeout = ((Number) config.getOrDefault("timedTimeout", 1000L)).longValue();
+        this.batchSize = ((Number) config.getOrDefault("batchSize", 1L)).intValue();
+        this.shard = ((Number) config.getOrDefault("shard", 0L)).intValue();
+        this.shards = ((Number) config.getOrDefault("shards", 1L)).intValue();
+        if (shards < 1 || shard < 0 || shard >= shards) {
+            throw new IllegalArgumentException("shard must be between 0 and shards - 1, got: " + shard + " of " + shards);
+        }
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batchSize must be positive, got: " + batchSize);
+        }
+        if (maxDegree < 1) {
+            throw new IllegalArgumentException("maxDegree must be positive, got: " + maxDegree);
+        }
+        if (timedTimeout < 1) {
+            throw new IllegalArgumentException("timedTimeout must be positive, got: " + timedTimeout);
+        }
+        if (timeout < 1) {
+            throw new IllegalArgumentException("timeout must be positive, got: " + timeout);
+        }
+    }
+
+    public long getMaxDegree() {
+        return maxDegree;
+    }
+
+    public Supernode getSupernode() {
+        return supernode;
+    }
+
+    // Milliseconds a relationship may take, counts still running then are left blank
+    public long getTimeout() {
+        return timeout;
+    }
+
+    // Where to persist the adjacency of the relationship type between runs, null to always rescan
+    public String getSnapshot() {
+        return snapshot;
+    }
+
+    // Nodes whose degrees are sampled by the estimate
+    public int getSampleSize() {
+        return sampleSize;
+    }
+
+    // Relationships whose motifs are actually counted and timed by the estimate
+    public int getTimedSample() {
+        return timedSample;
+    }
+
+    // Milliseconds the estimate spends counting one relationship before cutting it off
+    public long getTimedTimeout() {
+        return timedTimeout;
+    }
+
+    // Relationships counted per UNWIND query, 1 runs one query per relationship
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    // Which part of the relationship id space this run counts, with ids assigned by their remainder
+    public int getShard() {
+        return shard;
+    }
+
+    public int getShards() {
+        return shards;
+    }
+
+    public boolean inShard(long relId) {
+        return Math.floorMod(relId, (long) shards) == shard;
+    }
+
+    public boolean isSupernode(long degree) {
+        return degree > maxDegree;
+    }
+}
@@ -0,0 +1,124 @@
+package com.maxdemarzi;
+
+import com.maxdemarzi.graph.AdjacencySnapshot;
+import com.maxdemarzi.graph.EdgeListReader;
+import com.maxdemarzi.results.CountMotifs;
+import com.maxdemarzi.results.FindMotifs;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/*
+ * Counts motifs over an exported edge list outside of Neo4j, writing the same files as com.maxdemarzi.motifs.
+ *
+ *   java -cp motifs-1.0-SNAPSHOT.jar com.maxdemarzi.OfflineMotifs edges.csv /tmp/motifs.csv --maxDegree=10000
+ *
+ * Options are the keys of the procedure's config map plus format (csv or binary), threads and type.
+ * A snapshot is tagged with the size and last modified time of the edge list instead of a store and transaction id,
+ * so copies of the edge list for other shards have to keep the time (cp -p, rsync -t).
+ *
+ * The shards of a run are merged by passing their manifests instead of an edge list:
+ *
+ *   java -cp motifs-1.0-SNAPSHOT.jar com.maxdemarzi.OfflineMotifs --merge=/tmp/motifs.csv motifs-shard0.properties ...
+ */
+public class OfflineMotifs {
+
+    public static void main(String[] args) throws IOException, InterruptedException, ExecutionException {
+        List<String> positional = new ArrayList<>();
+        Map<String, Object> options = new HashMap<>();
+        for (String arg : args) {
+            if (arg.startsWith("--") && arg.contains("=")) {
+                String key = arg.substring(2, arg.indexOf('='));
+                String value = arg.substring(arg.indexOf('=') + 1);
+                options.put(key, value.matches("-?\\d+") ? (Object) Long.parseLong(value) : value);
+            } else {
+                positional.add(arg);
+            }
+        }
+        if (positional.isEmpty()) {
+            System.err.println("Usage: OfflineMotifs <edges> [path] [--format=csv|binary] [--threads=n] [--type=name] "
+                    + "[--snapshot=file] [--maxDegree=n] [--supernodeStrategy=skip|approximate|split] [--shard=i --shards=n]");
+            System.err.println("       OfflineMotifs --merge=path <manifest>...");
+            System.exit(1);
+        }
+        if (options.containsKey("merge")) {
+            List<File> manifests = new ArrayList<>();
+            for (String manifest : positional) {
+                manifests.add(new File(manifest));
+            }
+            long rows = ShardManifest.merge(manifests, new File(options.get("merge").toString()));
+            System.out.println("Merged " + rows + " rows into: " + options.get("merge"));
+            return;
+        }
+
+        File edges = new File(positional.get(0));
+        String path = positional.size() > 1 ? positional.get(1) : "/tmp/motifs.csv";
+        boolean binary = "binary".equals(options.remove("format"));
+        int threads = ((Number) options.getOrDefault("threads", (long) Runtime.getRuntime().availableProcessors())).intValue();
+        String type = options.getOrDefault("type", edges.getName()).toString();
+        options.remove("threads");
+        options.remove("type");
+        MotifsConfig config = new MotifsConfig(options);
+
+        AdjacencySnapshot graph = load(edges, binary, type, config.getSnapshot());
+        System.out.println("Loaded " + graph.relationshipCount() + " relationships between " + graph.nodeCount() + " nodes");
+
+        String dataPath = ShardManifest.dataPath(path, config);
+        // A manifest of an earlier run would describe files this run is about to replace
+        Files.deleteIfExists(ShardManifest.manifestFile(dataPath).toPath());
+        ExecutorService service = Executors.newFixedThreadPool(threads);
+        ExecutorService splitter = config.getSupernode() == MotifsConfig.Supernode.SPLIT
+                ? Executors.newFixedThreadPool(threads) : null;
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                futures.add(service.submit(new CountMotifs(graph, i, threads, dataPath, config, splitter)));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            service.shutdownNow();
+            if (splitter != null) {
+                splitter.shutdownNow();
+            }
+        }
+
+        List<File> files = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            files.add(new File(FindMotifs.threadPath(dataPath, i)));
+        }
+        File manifest = ShardManifest.write(dataPath, type, graph.getLastTxId(), config, files);
+        System.out.println("Results written to: " + dataPath + "1-" + threads + ", described by " + manifest);
+    }
+
+    // The edge list's size stands in for a store id, its last modified time for a transaction id
+    private static AdjacencySnapshot load(File edges, boolean binary, String type, String snapshot) throws IOException {
+        if (snapshot == null) {
+            return EdgeListReader.read(edges, binary, type, edges.length(), edges.lastModified());
+        }
+
+        File file = new File(snapshot);
+        if (file.exists()) {
+            try {
+                AdjacencySnapshot graph = AdjacencySnapshot.map(file);
+                if (graph.matches(type, edges.length(), edges.lastModified())) {
+                    return graph;
+                }
+            } catch (IOException e) {
+                System.err.println(e.getMessage() + ", rebuilding it");
+            }
+        }
+        EdgeListReader.read(edges, binary, type, edges.length(), edges.lastModified()).write(file);
+        return AdjacencySnapshot.map(file);
+    }
+}
@@ -1,12 +1,27 @@
 package com.maxdemarzi;
 
+import com.maxdemarzi.graph.AdjacencySnapshot;
+import com.maxdemarzi.graph.Motif;
+import com.maxdemarzi.graph.TopMotifs;
+import com.maxdemarzi.results.EstimateResult;
 import com.maxdemarzi.results.FindMotifs;
+import com.maxdemarzi.results.MotifCountResult;
+import com.maxdemarzi.results.RelationshipMotifsResult;
 import com.maxdemarzi.results.StringResult;
 import org.neo4j.graphdb.*;
+import org.neo4j.kernel.impl.transaction.log.TransactionIdStore;
+import org.neo4j.kernel.internal.GraphDatabaseAPI;
 import org.neo4j.logging.Log;
 import org.neo4j.procedure.*;
 import org.roaringbitmap.longlong.Roaring64NavigableMap;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Stream;
@@ -25,12 +40,19 @@ public class Procedures {
 
 
     @Procedure(name = "com.maxdemarzi.motifs", mode = Mode.WRITE)
-    @Description("CALL com.maxdemarzi.motifs(type, path)")
-    public Stream<StringResult> motifs(@Name("type") String type, @Name(value = "path", defaultValue = "/tmp/motifs.csv") String path) throws InterruptedException {
+    @Description("CALL com.maxdemarzi.motifs(type, path, config)")
+    public Stream<StringResult> motifs(@Name("type") String type, @Name(value = "path", defaultValue = "/tmp/motifs.csv") String path,
+                                       @Name(value = "config", defaultValue = "{}") Map<String, Object> config) throws InterruptedException, IOException {
+        MotifsConfig motifsConfig = new MotifsConfig(config);
+
         // Get number of threads and setup executor
         int threads = Runtime.getRuntime().availableProcessors();
         final ExecutorService service = Executors.newFixedThreadPool(threads);
 
+        // Supernode relationships split their motifs across a second pool so they don't starve the workers
+        final ExecutorService splitter = motifsConfig.getSupernode() == MotifsConfig.Supernode.SPLIT
+                ? Executors.newFixedThreadPool(threads) : null;
+
         // Find all the relationships of the specified type
         RelationshipType relationshipType = RelationshipType.withName(type);
         Roaring64NavigableMap[] rels = new Roaring64NavigableMap[threads];
@@ -40,29 +62,170 @@ public class Procedures {
 
         AtomicInteger index = new AtomicInteger(-1);
 
-        // Get relationship IDs and split them into buckets
-        for (Relationship r : db.getAllRelationships()) {
-            if (r.isType(relationshipType)) {
-                rels[index.incrementAndGet() % threads].add(r.getId());
+        // Get relationship IDs of this shard and split them into buckets
+        long lastTxId = lastTxId();
+        if (motifsConfig.getSnapshot() == null) {
+            for (Relationship r : db.getAllRelationships()) {
+                if (r.isType(relationshipType) && motifsConfig.inShard(r.getId())) {
+                    rels[index.incrementAndGet() % threads].add(r.getId());
+                }
+            }
+        } else {
+            AdjacencySnapshot snapshot = snapshot(relationshipType, new File(motifsConfig.getSnapshot()));
+            lastTxId = snapshot.getLastTxId();
+            for (int i = 0; i < snapshot.relationshipCount(); i++) {
+                if (motifsConfig.inShard(snapshot.relationshipId(i))) {
+                    rels[index.incrementAndGet() % threads].add(snapshot.relationshipId(i));
+                }
             }
         }
+        String dataPath = ShardManifest.dataPath(path, motifsConfig);
+        // A manifest of an earlier run would describe files this run is about to replace
+        Files.deleteIfExists(ShardManifest.manifestFile(dataPath).toPath());
+        List<Future<?>> futures = new ArrayList<>();
         for (int i = 0; i < threads; i++) {
-            service.execute(new FindMotifs(db, log, rels[i], i, path));
+            futures.add(service.submit(new FindMotifs(db, log, rels[i], i, dataPath, motifsConfig, splitter)));
         }
 
         try {
             service.shutdown();
-            service.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
-        } catch (InterruptedException e) {
-            log.error("tasks interrupted");
-        } finally {
-            if (!service.isTerminated()) {
-                log.error("cancel tasks");
+            for (Future<?> future : futures) {
+                future.get();
             }
+        } catch (ExecutionException e) {
+            // Only describe complete files, a coordinator merging shards trusts the manifest
+            log.error("Finding motifs failed: " + e.getCause());
+            throw new IllegalStateException("Finding motifs failed, no manifest written for " + dataPath, e.getCause());
+        } finally {
             service.shutdownNow();
+            if (splitter != null) {
+                splitter.shutdownNow();
+            }
             log.info("shutdown finished");
         }
 
-        return Stream.of(new StringResult("Results written to: " + path + "1-" + threads));
+        List<File> files = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            files.add(new File(FindMotifs.threadPath(dataPath, i)));
+        }
+        File manifest = ShardManifest.write(dataPath, type, lastTxId, motifsConfig, files);
+        return Stream.of(new StringResult("Results written to: " + dataPath + "1-" + threads + ", described by " + manifest));
+    }
+
+    @Procedure(name = "com.maxdemarzi.motifs.merge", mode = Mode.READ)
+    @Description("CALL com.maxdemarzi.motifs.merge(manifests, path)")
+    public Stream<StringResult> merge(@Name("manifests") List<String> manifests,
+                                      @Name(value = "path", defaultValue = "/tmp/motifs.csv") String path) throws IOException {
+        List<File> files = new ArrayList<>();
+        for (String manifest : manifests) {
+            files.add(new File(manifest));
+        }
+        long rows = ShardManifest.merge(files, new File(path));
+        log.info("Merged " + rows + " rows from " + manifests.size() + " shards into " + path);
+        return Stream.of(new StringResult("Merged " + rows + " rows into: " + path));
+    }
+
+    @Procedure(name = "com.maxdemarzi.motifs.forRelationships", mode = Mode.READ)
+    @Description("CALL com.maxdemarzi.motifs.forRelationships(ids, motifs)")
+    public Stream<RelationshipMotifsResult> forRelationships(@Name("ids") List<Long> ids,
+                                                             @Name(value = "motifs", defaultValue = "[]") List<String> motifs) {
+        List<String> names = motifs.isEmpty() ? FindMotifs.names() : motifs;
+        MotifCache cache = MotifCache.forDatabase(db);
+        cache.refresh(db);
+
+        List<RelationshipMotifsResult> results = new ArrayList<>();
+        for (Long id : ids) {
+            Relationship relationship;
+            try {
+                relationship = db.getRelationshipById(id);
+            } catch (NotFoundException e) {
+                log.debug("Relationship " + id + " not found");
+                continue;
+            }
+
+            // Read the generation first so counts racing a commit are not cached
+            long generation = cache.generation();
+            Map<String, Long> cached = cache.get(id);
+            Map<String, Long> computed = new LinkedHashMap<>();
+            Map<String, Object> counts = new LinkedHashMap<>();
+            for (String name : names) {
+                Long count = cached.get(name);
+                if (count == null) {
+                    count = (long) FindMotifs.count(db, id, name);
+                    computed.put(name, count);
+                }
+                counts.put(name, count);
+            }
+            cache.put(id, relationship.getStartNodeId(), relationship.getEndNodeId(), generation, computed);
+            results.add(new RelationshipMotifsResult(id, relationship.getStartNodeId(), relationship.getEndNodeId(), counts));
+        }
+        return results.stream();
+    }
+
+    @Procedure(name = "com.maxdemarzi.motifs.estimate", mode = Mode.READ)
+    @Description("CALL com.maxdemarzi.motifs.estimate(type, config)")
+    public Stream<EstimateResult> estimate(@Name("type") String type,
+                                           @Name(value = "config", defaultValue = "{}") Map<String, Object> config)
+            throws InterruptedException {
+        return Stream.of(new Estimator(db, log).estimate(type, new MotifsConfig(config)));
+    }
+
+    @Procedure(name = "com.maxdemarzi.motifs.topK", mode = Mode.READ)
+    @Description("CALL com.maxdemarzi.motifs.topK(type, motif, k, config)")
+    public Stream<MotifCountResult> topK(@Name("type") String type, @Name("motif") String motif,
+                                         @Name(value = "k", defaultValue = "1000") long k,
+                                         @Name(value = "config", defaultValue = "{}") Map<String, Object> config)
+            throws IOException, InterruptedException, ExecutionException {
+        if (k < 1 || k > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("k must be between 1 and " + Integer.MAX_VALUE + ", got: " + k);
+        }
+        MotifsConfig motifsConfig = new MotifsConfig(config);
+        AdjacencySnapshot snapshot = snapshot(RelationshipType.withName(type),
+                motifsConfig.getSnapshot() == null ? null : new File(motifsConfig.getSnapshot()));
+
+        List<long[]> top = TopMotifs.find(snapshot, Motif.named(motif), (int) k, Runtime.getRuntime().availableProcessors());
+        return top.stream().map(pair -> {
+            int edge = (int) pair[0];
+            return new MotifCountResult(snapshot.relationshipId(edge), snapshot.nodeId(snapshot.source(edge)),
+                    snapshot.nodeId(snapshot.target(edge)), pair[1]);
+        });
+    }
+
+    // Maps the snapshot back in if it was taken of this store and nothing has been committed since, otherwise rescans
+    // and replaces it. Without a file the snapshot is only built on the heap.
+    private AdjacencySnapshot snapshot(RelationshipType relationshipType, File file) throws IOException {
+        long storeId = ((GraphDatabaseAPI) db).storeId().getRandomId();
+        long lastTxId = lastTxId();
+
+        if (file != null && file.exists()) {
+            try {
+                AdjacencySnapshot snapshot = AdjacencySnapshot.map(file);
+                if (snapshot.matches(relationshipType.name(), storeId, lastTxId)) {
+                    log.info("Reusing snapshot " + file + " taken at transaction " + lastTxId);
+                    return snapshot;
+                }
+                log.info("Snapshot " + file + " of " + snapshot.getType() + " in store " + snapshot.getStoreId()
+                        + " at transaction " + snapshot.getLastTxId() + " is stale, rebuilding");
+            } catch (IOException e) {
+                log.info(e.getMessage() + ", rebuilding it");
+            }
+        }
+
+        AdjacencySnapshot.Builder builder = new AdjacencySnapshot.Builder(relationshipType.name(), storeId, lastTxId);
+        for (Relationship r : db.getAllRelationships()) {
+            if (r.isType(relationshipType)) {
+                builder.add(r.getId(), r.getStartNodeId(), r.getEndNodeId());
+            }
+        }
+        if (file == null) {
+            return builder.build();
+        }
+        builder.build().write(file);
+        return AdjacencySnapshot.map(file);
+    }
+
+    private long lastTxId() {
+        return ((GraphDatabaseAPI) db).getDependencyResolver()
+                .resolveDependency(TransactionIdStore.class).getLastCommittedTransactionId();
     }
 }
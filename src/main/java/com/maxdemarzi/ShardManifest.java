@@ -0,0 +1,244 @@
+package com.maxdemarzi;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/*
+ * Describes the files one shard of a motifs run wrote, so shards computed by separate processes can be merged.
+ *
+ * The manifest is a properties file next to the data files recording the relationship type, the version of the graph
+ * that was counted (the last transaction id, or the edge list's snapshot tag offline), which shard of how many it is,
+ * the header of the files, and the row count and CRC32 of every file. Files are named relative to the manifest,
+ * so a shard can be copied to the coordinator as a directory.
+ */
+public class ShardManifest {
+    private final File file;
+    private final String type;
+    private final long version;
+    private final int shard;
+    private final int shards;
+    private final String columns;
+    private final List<String> files;
+    private final List<Long> rows;
+    private final List<Long> checksums;
+
+    private ShardManifest(File file, String type, long version, int shard, int shards, String columns,
+                          List<String> files, List<Long> rows, List<Long> checksums) {
+        this.file = file;
+        this.type = type;
+        this.version = version;
+        this.shard = shard;
+        this.shards = shards;
+        this.columns = columns;
+        this.files = files;
+        this.rows = rows;
+        this.checksums = checksums;
+    }
+
+    // Where a shard writes its data files, the path itself when the run isn't sharded
+    public static String dataPath(String path, MotifsConfig config) {
+        if (config.getShards() == 1) {
+            return path;
+        }
+        return path.substring(0, path.lastIndexOf(".")) + "-shard" + config.getShard() + path.substring(path.lastIndexOf("."));
+    }
+
+    public static File manifestFile(String dataPath) {
+        return new File(dataPath.substring(0, dataPath.lastIndexOf(".")) + ".properties");
+    }
+
+    // Describes the data files once they are complete
+    public static File write(String dataPath, String type, long version, MotifsConfig config, List<File> dataFiles)
+            throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty("type", type);
+        properties.setProperty("version", String.valueOf(version));
+        properties.setProperty("shard", String.valueOf(config.getShard()));
+        properties.setProperty("shards", String.valueOf(config.getShards()));
+        properties.setProperty("files", String.valueOf(dataFiles.size()));
+
+        String columns = null;
+        for (int i = 0; i < dataFiles.size(); i++) {
+            File dataFile = dataFiles.get(i);
+            CRC32 crc = new CRC32();
+            ByteArrayOutputStream header = new ByteArrayOutputStream();
+            long lines = copy(dataFile, null, header, crc);
+            String fileColumns = line(header);
+            if (columns != null && !columns.equals(fileColumns)) {
+                throw new IllegalStateException(dataFile + " has columns " + fileColumns + " instead of " + columns);
+            }
+            columns = fileColumns;
+            properties.setProperty("file." + i, dataFile.getName());
+            properties.setProperty("rows." + i, String.valueOf(lines - 1));
+            properties.setProperty("crc." + i, String.valueOf(crc.getValue()));
+        }
+        properties.setProperty("columns", columns == null ? "" : columns);
+
+        File manifest = manifestFile(dataPath);
+        Path temp = temporary(manifest);
+        try (OutputStream out = Files.newOutputStream(temp)) {
+            properties.store(out, "Motifs shard " + config.getShard() + " of " + config.getShards());
+        } catch (IOException | RuntimeException exception) {
+            Files.deleteIfExists(temp);
+            throw exception;
+        }
+        Files.move(temp, manifest.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return manifest;
+    }
+
+    public static ShardManifest read(File file) throws IOException {
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            properties.load(in);
+        }
+        int count = Integer.parseInt(required(file, properties, "files"));
+        List<String> files = new ArrayList<>();
+        List<Long> rows = new ArrayList<>();
+        List<Long> checksums = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            files.add(required(file, properties, "file." + i));
+            rows.add(Long.parseLong(required(file, properties, "rows." + i)));
+            checksums.add(Long.parseLong(required(file, properties, "crc." + i)));
+        }
+        return new ShardManifest(file, required(file, properties, "type"),
+                Long.parseLong(required(file, properties, "version")),
+                Integer.parseInt(required(file, properties, "shard")),
+                Integer.parseInt(required(file, properties, "shards")),
+                required(file, properties, "columns"), files, rows, checksums);
+    }
+
+    /*
+     * Checks the manifests describe every shard of the same run exactly once, then writes their rows under a single
+     * header. Each file is checksummed as it is copied, and the output is only replaced once all of them match.
+     * Returns the number of rows written.
+     */
+    public static long merge(List<File> manifestFiles, File output) throws IOException {
+        if (manifestFiles.isEmpty()) {
+            throw new IllegalArgumentException("No manifests to merge");
+        }
+        List<ShardManifest> manifests = new ArrayList<>();
+        for (File manifestFile : manifestFiles) {
+            manifests.add(read(manifestFile));
+        }
+
+        ShardManifest first = manifests.get(0);
+        if (first.shards < 1) {
+            throw new IllegalArgumentException(first.file + " has " + first.shards + " shards");
+        }
+        ShardManifest[] byShard = new ShardManifest[first.shards];
+        for (ShardManifest manifest : manifests) {
+            if (!manifest.type.equals(first.type) || manifest.version != first.version) {
+                throw new IllegalArgumentException(manifest.file + " counted " + manifest.type + " at version "
+                        + manifest.version + " but " + first.file + " counted " + first.type + " at version " + first.version);
+            }
+            if (manifest.shards != first.shards || !manifest.columns.equals(first.columns)) {
+                throw new IllegalArgumentException(manifest.file + " is not from the same run as " + first.file);
+            }
+            if (manifest.shard < 0 || manifest.shard >= manifest.shards) {
+                throw new IllegalArgumentException(manifest.file + " has shard " + manifest.shard + " of " + manifest.shards);
+            }
+            if (byShard[manifest.shard] != null) {
+                throw new IllegalArgumentException("Shard " + manifest.shard + " is in both "
+                        + byShard[manifest.shard].file + " and " + manifest.file);
+            }
+            byShard[manifest.shard] = manifest;
+        }
+        for (int shard = 0; shard < byShard.length; shard++) {
+            if (byShard[shard] == null) {
+                throw new IllegalArgumentException("Shard " + shard + " of " + first.shards + " is missing");
+            }
+        }
+
+        Path temp = temporary(output);
+        long total = 0;
+        boolean header = true;
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(temp))) {
+            for (ShardManifest manifest : byShard) {
+                for (int i = 0; i < manifest.files.size(); i++) {
+                    File dataFile = new File(manifest.file.getAbsoluteFile().getParentFile(), manifest.files.get(i));
+                    CRC32 crc = new CRC32();
+                    long lines = copy(dataFile, out, header ? out : null, crc);
+                    header = false;
+                    if (crc.getValue() != manifest.checksums.get(i) || lines - 1 != manifest.rows.get(i)) {
+                        throw new IllegalStateException(dataFile + " has " + (lines - 1) + " rows with checksum "
+                                + crc.getValue() + " but " + manifest.file + " expects " + manifest.rows.get(i)
+                                + " rows with checksum " + manifest.checksums.get(i));
+                    }
+                    total += lines - 1;
+                }
+            }
+        } catch (IOException | RuntimeException exception) {
+            Files.deleteIfExists(temp);
+            throw exception;
+        }
+        Files.move(temp, output.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return total;
+    }
+
+    // Streams a data file through the checksum, sending its header line and its rows to separate streams.
+    // Returns the number of lines, fields never contain line breaks.
+    private static long copy(File dataFile, OutputStream rows, OutputStream header, CRC32 crc) throws IOException {
+        long lines = 0;
+        byte[] buffer = new byte[1 << 16];
+        try (InputStream in = new FileInputStream(dataFile)) {
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                crc.update(buffer, 0, read);
+                int start = 0;
+                for (int i = 0; i < read; i++) {
+                    if (buffer[i] == '\n' && ++lines == 1) {
+                        if (header != null) {
+                            header.write(buffer, start, i + 1 - start);
+                        }
+                        start = i + 1;
+                    }
+                }
+                if (lines == 0) {
+                    if (header != null) {
+                        header.write(buffer, start, read - start);
+                    }
+                } else if (rows != null) {
+                    rows.write(buffer, start, read - start);
+                }
+            }
+        }
+        return lines;
+    }
+
+    // A temporary file of its own next to the file, so concurrent writers never share one
+    private static Path temporary(File file) throws IOException {
+        return Files.createTempFile(file.getAbsoluteFile().getParentFile().toPath(), file.getName(), ".tmp");
+    }
+
+    private static String line(ByteArrayOutputStream header) throws UnsupportedEncodingException {
+        return header.toString("UTF-8").replaceAll("[\r\n]+$", "");
+    }
+
+    private static String required(File file, Properties properties, String key) {
+        String value = properties.getProperty(key);
+        if (value == null) {
+            throw new IllegalArgumentException(file + " is missing " + key);
+        }
+        return value;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public int getShard() {
+        return shard;
+    }
+
+    public int getShards() {
+        return shards;
+    }
+}
@@ -0,0 +1,370 @@
+package com.maxdemarzi.graph;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.Arrays;
+
+/*
+ * The relationships of a single type in compressed sparse row form.
+ * Nodes are renumbered densely in ascending id order, relationships keep the order they were added in.
+ * Each node's neighbours are sorted so the relationships between two nodes can be found with a binary search.
+ *
+ * File layout (big endian):
+ *   int magic, int version, long storeId, long lastTxId, int typeLength, byte[] type, padding to 8 bytes,
+ *   int nodeCount, int relationshipCount, long[nodeCount] nodeIds, long[relationshipCount] relationshipIds,
+ *   int[relationshipCount] sources, int[relationshipCount] targets, int[nodeCount + 1] offsets,
+ *   int[entries] neighbours, int[entries] edges
+ */
+public class AdjacencySnapshot {
+    private static final int MAGIC = 0x4D4F5446;
+    private static final int VERSION = 2;
+
+    private final String type;
+    // Tells stores apart that may share transaction ids, the store's random id or the edge list's size offline
+    private final long storeId;
+    private final long lastTxId;
+    private final int nodeCount;
+    private final int relationshipCount;
+    private final LongBuffer nodeIds;
+    private final LongBuffer relationshipIds;
+    private final IntBuffer sources;
+    private final IntBuffer targets;
+    private final IntBuffer offsets;
+    private final IntBuffer neighbours;
+    private final IntBuffer edges;
+
+    private AdjacencySnapshot(String type, long storeId, long lastTxId, int nodeCount, int relationshipCount,
+                              LongBuffer nodeIds, LongBuffer relationshipIds, IntBuffer sources, IntBuffer targets,
+                              IntBuffer offsets, IntBuffer neighbours, IntBuffer edges) {
+        this.type = type;
+        this.storeId = storeId;
+        this.lastTxId = lastTxId;
+        this.nodeCount = nodeCount;
+        this.relationshipCount = relationshipCount;
+        this.nodeIds = nodeIds;
+        this.relationshipIds = relationshipIds;
+        this.sources = sources;
+        this.targets = targets;
+        this.offsets = offsets;
+        this.neighbours = neighbours;
+        this.edges = edges;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public long getStoreId() {
+        return storeId;
+    }
+
+    public long getLastTxId() {
+        return lastTxId;
+    }
+
+    public boolean matches(String type, long storeId, long lastTxId) {
+        return this.type.equals(type) && this.storeId == storeId && this.lastTxId == lastTxId;
+    }
+
+    public int nodeCount() {
+        return nodeCount;
+    }
+
+    public int relationshipCount() {
+        return relationshipCount;
+    }
+
+    public long nodeId(int node) {
+        return nodeIds.get(node);
+    }
+
+    // Dense index of a node id, or a negative number if it has no relationships of this type
+    public int indexOf(long nodeId) {
+        int low = 0;
+        int high = nodeCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long value = nodeIds.get(mid);
+            if (value < nodeId) {
+                low = mid + 1;
+            } else if (value > nodeId) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
+    public long relationshipId(int edge) {
+        return relationshipIds.get(edge);
+    }
+
+    public int source(int edge) {
+        return sources.get(edge);
+    }
+
+    public int target(int edge) {
+        return targets.get(edge);
+    }
+
+    public int degree(int node) {
+        return offsets.get(node + 1) - offsets.get(node);
+    }
+
+    public int maxDegree() {
+        int max = 0;
+        for (int node = 0; node < nodeCount; node++) {
+            max = Math.max(max, degree(node));
+        }
+        return max;
+    }
+
+    // The most relationships between any two nodes, 1 for a simple graph
+    public int multiplicity() {
+        int max = nodeCount == 0 ? 0 : 1;
+        for (int node = 0; node < nodeCount; node++) {
+            int run = 1;
+            for (int entry = begin(node) + 1; entry < end(node); entry++) {
+                run = neighbours.get(entry) == neighbours.get(entry - 1) ? run + 1 : 1;
+                max = Math.max(max, run);
+            }
+        }
+        return max;
+    }
+
+    // Neighbour entries of a node live in [begin(node), end(node))
+    public int begin(int node) {
+        return offsets.get(node);
+    }
+
+    public int end(int node) {
+        return offsets.get(node + 1);
+    }
+
+    public int neighbour(int entry) {
+        return neighbours.get(entry);
+    }
+
+    public int edge(int entry) {
+        return edges.get(entry);
+    }
+
+    // First entry of node whose neighbour is at least other
+    public int lowerBound(int node, int other) {
+        int low = begin(node);
+        int high = end(node);
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (neighbours.get(mid) < other) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    public static long sizeInBytes(String type, long nodes, long relationships) {
+        return headerSize(type) + 8 + nodes * 8 + relationships * 8 + relationships * 8
+                + (nodes + 1) * 4 + relationships * 2 * 8;
+    }
+
+    private static int headerSize(String type) {
+        int unpadded = 4 + 4 + 8 + 8 + 4 + type.getBytes(StandardCharsets.UTF_8).length;
+        return (unpadded + 7) & ~7;
+    }
+
+    // Written to a temporary file of its own first, so concurrent runs never write to or map a half written snapshot
+    public void write(File file) throws IOException {
+        Path temporary = Files.createTempFile(file.getAbsoluteFile().getParentFile().toPath(), file.getName(), ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary), 1 << 16))) {
+            byte[] name = type.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(storeId);
+            out.writeLong(lastTxId);
+            out.writeInt(name.length);
+            out.write(name);
+            for (int i = 4 + 4 + 8 + 8 + 4 + name.length; i < headerSize(type); i++) {
+                out.writeByte(0);
+            }
+            out.writeInt(nodeCount);
+            out.writeInt(relationshipCount);
+            for (int i = 0; i < nodeCount; i++) {
+                out.writeLong(nodeIds.get(i));
+            }
+            for (int i = 0; i < relationshipCount; i++) {
+                out.writeLong(relationshipIds.get(i));
+            }
+            for (int i = 0; i < relationshipCount; i++) {
+                out.writeInt(sources.get(i));
+            }
+            for (int i = 0; i < relationshipCount; i++) {
+                out.writeInt(targets.get(i));
+            }
+            for (int i = 0; i <= nodeCount; i++) {
+                out.writeInt(offsets.get(i));
+            }
+            int entries = offsets.get(nodeCount);
+            for (int i = 0; i < entries; i++) {
+                out.writeInt(neighbours.get(i));
+            }
+            for (int i = 0; i < entries; i++) {
+                out.writeInt(edges.get(i));
+            }
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temporary);
+            throw e;
+        }
+        Files.move(temporary, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // The mappings stay valid after the channel is closed and are paged in lazily by the OS
+    public static AdjacencySnapshot map(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(channel.size(), 1 << 16));
+            if (header.getInt() != MAGIC) {
+                throw new IOException(file + " is not a motifs adjacency snapshot");
+            }
+            int version = header.getInt();
+            if (version != VERSION) {
+                throw new IOException(file + " has snapshot version " + version + ", expected " + VERSION);
+            }
+            long storeId = header.getLong();
+            long lastTxId = header.getLong();
+            byte[] name = new byte[header.getInt()];
+            header.get(name);
+            String type = new String(name, StandardCharsets.UTF_8);
+            header.position(headerSize(type));
+            int nodeCount = header.getInt();
+            int relationshipCount = header.getInt();
+
+            long position = headerSize(type) + 8;
+            LongBuffer nodeIds = map(channel, position, nodeCount * 8L).asLongBuffer();
+            position += nodeCount * 8L;
+            LongBuffer relationshipIds = map(channel, position, relationshipCount * 8L).asLongBuffer();
+            position += relationshipCount * 8L;
+            IntBuffer sources = map(channel, position, relationshipCount * 4L).asIntBuffer();
+            position += relationshipCount * 4L;
+            IntBuffer targets = map(channel, position, relationshipCount * 4L).asIntBuffer();
+            position += relationshipCount * 4L;
+            IntBuffer offsets = map(channel, position, (nodeCount + 1) * 4L).asIntBuffer();
+            position += (nodeCount + 1) * 4L;
+            int entries = offsets.get(nodeCount);
+            IntBuffer neighbours = map(channel, position, entries * 4L).asIntBuffer();
+            position += entries * 4L;
+            IntBuffer edges = map(channel, position, entries * 4L).asIntBuffer();
+
+            return new AdjacencySnapshot(type, storeId, lastTxId, nodeCount, relationshipCount,
+                    nodeIds, relationshipIds, sources, targets, offsets, neighbours, edges);
+        }
+    }
+
+    private static ByteBuffer map(FileChannel channel, long position, long size) throws IOException {
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Snapshot section of " + size + " bytes is too large to map");
+        }
+        return channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+    }
+
+    public static class Builder {
+        private final String type;
+        private final long storeId;
+        private final long lastTxId;
+        private long[] relationshipIds = new long[1024];
+        private long[] starts = new long[1024];
+        private long[] ends = new long[1024];
+        private int count;
+
+        public Builder(String type, long storeId, long lastTxId) {
+            this.type = type;
+            this.storeId = storeId;
+            this.lastTxId = lastTxId;
+        }
+
+        public void add(long relationshipId, long start, long end) {
+            if (count == relationshipIds.length) {
+                int capacity = (int) Math.min(Integer.MAX_VALUE - 8, count * 2L);
+                if (capacity == count) {
+                    throw new IllegalStateException("Too many relationships for a single snapshot");
+                }
+                relationshipIds = Arrays.copyOf(relationshipIds, capacity);
+                starts = Arrays.copyOf(starts, capacity);
+                ends = Arrays.copyOf(ends, capacity);
+            }
+            relationshipIds[count] = relationshipId;
+            starts[count] = start;
+            ends[count] = end;
+            count++;
+        }
+
+        public AdjacencySnapshot build() {
+            // Dense node numbering in ascending node id order
+            long[] nodeIds = new long[count * 2];
+            System.arraycopy(starts, 0, nodeIds, 0, count);
+            System.arraycopy(ends, 0, nodeIds, count, count);
+            Arrays.sort(nodeIds);
+            int nodeCount = 0;
+            for (int i = 0; i < nodeIds.length; i++) {
+                if (i == 0 || nodeIds[i] != nodeIds[i - 1]) {
+                    nodeIds[nodeCount++] = nodeIds[i];
+                }
+            }
+            nodeIds = Arrays.copyOf(nodeIds, nodeCount);
+
+            int[] sources = new int[count];
+            int[] targets = new int[count];
+            int[] offsets = new int[nodeCount + 1];
+            for (int i = 0; i < count; i++) {
+                sources[i] = Arrays.binarySearch(nodeIds, starts[i]);
+                targets[i] = Arrays.binarySearch(nodeIds, ends[i]);
+                // Motifs never repeat a node, so self loops are kept as relationships but not as neighbours
+                if (sources[i] != targets[i]) {
+                    offsets[sources[i] + 1]++;
+                    offsets[targets[i] + 1]++;
+                }
+            }
+            for (int node = 0; node < nodeCount; node++) {
+                offsets[node + 1] += offsets[node];
+            }
+
+            int[] neighbours = new int[offsets[nodeCount]];
+            int[] edges = new int[offsets[nodeCount]];
+            int[] next = Arrays.copyOf(offsets, nodeCount);
+            for (int i = 0; i < count; i++) {
+                if (sources[i] != targets[i]) {
+                    neighbours[next[sources[i]]] = targets[i];
+                    edges[next[sources[i]]++] = i;
+                    neighbours[next[targets[i]]] = sources[i];
+                    edges[next[targets[i]]++] = i;
+                }
+            }
+
+            // Sort each node's entries by neighbour, then relationship, packed into a long
+            for (int node = 0; node < nodeCount; node++) {
+                int begin = offsets[node];
+                int end = offsets[node + 1];
+                long[] packed = new long[end - begin];
+                for (int i = begin; i < end; i++) {
+                    packed[i - begin] = ((long) neighbours[i] << 32) | edges[i];
+                }
+                Arrays.sort(packed);
+                for (int i = begin; i < end; i++) {
+                    neighbours[i] = (int) (packed[i - begin] >>> 32);
+                    edges[i] = (int) packed[i - begin];
+                }
+            }
+
+            return new AdjacencySnapshot(type, storeId, lastTxId, nodeCount, count,
+                    LongBuffer.wrap(nodeIds), LongBuffer.wrap(Arrays.copyOf(relationshipIds, count)),
+                    IntBuffer.wrap(sources), IntBuffer.wrap(targets), IntBuffer.wrap(offsets),
+                    IntBuffer.wrap(neighbours), IntBuffer.wrap(edges));
+        }
+    }
+}
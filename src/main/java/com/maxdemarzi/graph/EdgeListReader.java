@@ -0,0 +1,131 @@
+package com.maxdemarzi.graph;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+/*
+ * Reads an exported edge list through memory mapped windows.
+ *
+ * CSV: one relationship per line as "start,end" or "id,start,end", quotes are ignored. The first line is skipped
+ *      as a header only if none of its fields are numbers, any other line that isn't a relationship is an error.
+ *      Without an id column relationships are numbered by their position in the file.
+ * Binary: big endian records of three longs, id, start and end.
+ */
+public class EdgeListReader {
+    private static final long WINDOW = 1L << 28;
+    private static final int RECORD = 24;
+
+    public static AdjacencySnapshot read(File file, boolean binary, String type, long storeId, long version) throws IOException {
+        AdjacencySnapshot.Builder builder = new AdjacencySnapshot.Builder(type, storeId, version);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (binary) {
+                readBinary(channel, builder);
+            } else {
+                readCsv(channel, builder);
+            }
+        }
+        return builder.build();
+    }
+
+    private static void readBinary(FileChannel channel, AdjacencySnapshot.Builder builder) throws IOException {
+        long size = channel.size();
+        if (size % RECORD != 0) {
+            throw new IOException("Binary edge list size " + size + " is not a multiple of " + RECORD);
+        }
+        long window = WINDOW - WINDOW % RECORD;
+        for (long position = 0; position < size; position += window) {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(window, size - position));
+            while (buffer.hasRemaining()) {
+                builder.add(buffer.getLong(), buffer.getLong(), buffer.getLong());
+            }
+        }
+    }
+
+    private static void readCsv(FileChannel channel, AdjacencySnapshot.Builder builder) throws IOException {
+        long size = channel.size();
+        long position = 0;
+        long line = 0;
+        long[] fields = new long[3];
+        while (position < size) {
+            long length = Math.min(WINDOW, size - position);
+            boolean last = position + length == size;
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+
+            int start = 0;
+            for (int i = 0; i < buffer.limit(); i++) {
+                if (buffer.get(i) == '\n') {
+                    parse(buffer, start, i, fields, line++, builder);
+                    start = i + 1;
+                }
+            }
+            if (last) {
+                if (start < buffer.limit()) {
+                    parse(buffer, start, buffer.limit(), fields, line++, builder);
+                }
+                position = size;
+            } else {
+                // Carry the incomplete last line over to the next window
+                if (start == 0) {
+                    throw new IOException("Line " + line + " is longer than " + WINDOW + " bytes");
+                }
+                position += start;
+            }
+        }
+    }
+
+    private static void parse(ByteBuffer buffer, int from, int to, long[] fields, long line,
+                              AdjacencySnapshot.Builder builder) throws IOException {
+        int count = 0;
+        long value = 0;
+        boolean digits = false;
+        for (int i = from; i <= to; i++) {
+            byte b = i < to ? buffer.get(i) : (byte) ',';
+            if (b >= '0' && b <= '9') {
+                value = value * 10 + (b - '0');
+                digits = true;
+            } else if (b == ',') {
+                if (!digits) {
+                    break;
+                }
+                if (count == fields.length) {
+                    throw new IOException("Line " + line + " has more than " + fields.length + " fields");
+                }
+                fields[count++] = value;
+                value = 0;
+                digits = false;
+            } else if (b != '"' && b != '\r' && b != ' ') {
+                // Not a number, only allowed on a header line without any numbers in it
+                if (line == 0 && header(buffer, from, to)) {
+                    return;
+                }
+                throw new IOException("Line " + line + " is not a relationship");
+            }
+        }
+        if (count == 2) {
+            builder.add(line, fields[0], fields[1]);
+        } else if (count == 3) {
+            builder.add(fields[0], fields[1], fields[2]);
+        } else if (to > from && !(to - from == 1 && buffer.get(from) == '\r')) {
+            throw new IOException("Line " + line + " has " + count + " fields, expected 2 or 3");
+        }
+    }
+
+    // A header names its columns, so none of its fields may be a number. Splits on other separators as well,
+    // so a first line like "1\t2" or "1,-2" is reported instead of dropped.
+    private static boolean header(ByteBuffer buffer, int from, int to) {
+        byte[] bytes = new byte[to - from];
+        for (int i = from; i < to; i++) {
+            bytes[i - from] = buffer.get(i);
+        }
+        for (String field : new String(bytes, StandardCharsets.UTF_8).split("[,;\\s]+")) {
+            if (field.replace("\"", "").matches("[+-]?\\d+(\\.\\d*)?")) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
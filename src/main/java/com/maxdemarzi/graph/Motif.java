@@ -0,0 +1,197 @@
+package com.maxdemarzi.graph;
+
+import java.util.*;
+
+/*
+ * The motifs of FindMotifs as small pattern graphs, for counting without Cypher.
+ * Nodes and relationships are numbered from 1 like p1 and r1 in the Cypher patterns,
+ * anchors are the relationships each variant binds to $rel_id.
+ */
+public class Motif {
+    public static final List<Motif> ALL;
+
+    private final String name;
+    private final int nodes;
+    private final int[] from;
+    private final int[] to;
+    private final int[] anchors;
+    // For each anchor, the order to bind the other relationships in so each one touches a bound node
+    private final int[][] plans;
+
+    private Motif(String name, int nodes, int[][] relationships, int... anchors) {
+        this.name = name;
+        this.nodes = nodes;
+        this.from = new int[relationships.length];
+        this.to = new int[relationships.length];
+        for (int i = 0; i < relationships.length; i++) {
+            from[i] = relationships[i][0] - 1;
+            to[i] = relationships[i][1] - 1;
+        }
+        this.anchors = new int[anchors.length];
+        this.plans = new int[anchors.length][];
+        for (int i = 0; i < anchors.length; i++) {
+            this.anchors[i] = anchors[i] - 1;
+            this.plans[i] = order(anchors[i] - 1);
+        }
+    }
+
+    private int[] order(int anchor) {
+        boolean[] bound = new boolean[nodes];
+        boolean[] planned = new boolean[from.length];
+        bound[from[anchor]] = true;
+        bound[to[anchor]] = true;
+        planned[anchor] = true;
+
+        int[] plan = new int[from.length - 1];
+        for (int step = 0; step < plan.length; step++) {
+            // Close relationships between bound nodes first, they prune the search the most
+            int next = -1;
+            for (int r = 0; r < from.length && next < 0; r++) {
+                if (!planned[r] && bound[from[r]] && bound[to[r]]) {
+                    next = r;
+                }
+            }
+            for (int r = 0; r < from.length && next < 0; r++) {
+                if (!planned[r] && (bound[from[r]] || bound[to[r]])) {
+                    next = r;
+                }
+            }
+            if (next < 0) {
+                throw new IllegalStateException("Motif " + name + " is not connected");
+            }
+            planned[next] = true;
+            bound[from[next]] = true;
+            bound[to[next]] = true;
+            plan[step] = next;
+        }
+        return plan;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int nodes() {
+        return nodes;
+    }
+
+    public int relationships() {
+        return from.length;
+    }
+
+    public int from(int relationship) {
+        return from[relationship];
+    }
+
+    public int to(int relationship) {
+        return to[relationship];
+    }
+
+    public int variants() {
+        return anchors.length;
+    }
+
+    public int anchor(int variant) {
+        return anchors[variant];
+    }
+
+    public int[] plan(int variant) {
+        return plans[variant];
+    }
+
+    /*
+     * An upper bound on the count around a relationship, from the degrees of its endpoints.
+     * Each variant and direction binds its remaining nodes one at a time: a node can be at most
+     * the smallest degree among the bound nodes it connects to, counting unknown ones as maxDegree,
+     * and closing a relationship between bound nodes has at most multiplicity choices.
+     */
+    public double upperBound(long startDegree, long endDegree, long maxDegree, long multiplicity) {
+        double bound = 0;
+        for (int variant = 0; variant < anchors.length; variant++) {
+            bound += upperBound(variant, startDegree, endDegree, maxDegree, multiplicity)
+                    + upperBound(variant, endDegree, startDegree, maxDegree, multiplicity);
+        }
+        return bound;
+    }
+
+    private double upperBound(int variant, long firstDegree, long secondDegree, long maxDegree, long multiplicity) {
+        long[] degrees = new long[nodes];
+        boolean[] bound = new boolean[nodes];
+        Arrays.fill(degrees, maxDegree);
+        degrees[from[anchors[variant]]] = firstDegree;
+        degrees[to[anchors[variant]]] = secondDegree;
+        bound[from[anchors[variant]]] = true;
+        bound[to[anchors[variant]]] = true;
+
+        double product = 1;
+        for (int relationship : plans[variant]) {
+            if (bound[from[relationship]] && bound[to[relationship]]) {
+                product *= multiplicity;
+                continue;
+            }
+            int added = bound[from[relationship]] ? to[relationship] : from[relationship];
+            long choices = maxDegree;
+            for (int r = 0; r < from.length; r++) {
+                if (from[r] == added && bound[to[r]]) {
+                    choices = Math.min(choices, degrees[to[r]]);
+                } else if (to[r] == added && bound[from[r]]) {
+                    choices = Math.min(choices, degrees[from[r]]);
+                }
+            }
+            product *= choices;
+            bound[added] = true;
+        }
+        return product;
+    }
+
+    public static Motif named(String name) {
+        for (Motif motif : ALL) {
+            if (motif.name.equals(name)) {
+                return motif;
+            }
+        }
+        throw new IllegalArgumentException("Unknown motif: " + name);
+    }
+
+    private static int[][] r(int... pairs) {
+        int[][] relationships = new int[pairs.length / 2][];
+        for (int i = 0; i < relationships.length; i++) {
+            relationships[i] = new int[]{pairs[2 * i], pairs[2 * i + 1]};
+        }
+        return relationships;
+    }
+
+    static {
+        List<Motif> motifs = new ArrayList<>();
+        motifs.add(new Motif("m3_1", 3, r(1,2, 2,3), 1));
+        motifs.add(new Motif("m3_2", 3, r(1,2, 2,3, 3,1), 1));
+        motifs.add(new Motif("m4_1", 4, r(1,2, 2,3, 3,4), 1, 2));
+        motifs.add(new Motif("m4_2", 4, r(1,2, 2,3, 2,4), 1, 3));
+        motifs.add(new Motif("m4_3", 4, r(1,2, 2,3, 3,4, 4,2), 1, 2, 3));
+        motifs.add(new Motif("m4_4", 4, r(1,2, 2,3, 3,4, 4,1), 1));
+        motifs.add(new Motif("m4_5", 4, r(1,2, 2,3, 3,4, 4,1, 2,4), 1, 5));
+        motifs.add(new Motif("m4_6", 4, r(1,2, 2,3, 3,4, 4,1, 2,4, 1,3), 1, 5, 6));
+        motifs.add(new Motif("m5_1", 5, r(1,3, 3,5, 5,1, 2,3, 3,4, 4,5, 5,2), 1, 2, 4));
+        motifs.add(new Motif("m5_2", 5, r(1,2, 2,3, 3,4, 3,5, 5,2, 5,1), 1, 2, 3, 4, 5, 6));
+        motifs.add(new Motif("m5_3", 5, r(1,2, 2,3, 3,4, 3,5, 5,1, 1,3), 1, 2, 3, 4, 5, 6));
+        motifs.add(new Motif("m5_4", 5, r(1,2, 2,3, 3,4, 4,5, 5,1, 1,4, 4,2), 1, 2, 3));
+        motifs.add(new Motif("m5_5", 5, r(1,2, 2,3, 3,4, 4,5, 3,5, 5,1, 1,3), 1, 2, 5, 6));
+        motifs.add(new Motif("m5_6", 5, r(1,2, 2,3, 3,4, 4,5, 5,2, 3,5, 5,1, 1,3), 1, 2, 3, 6));
+        motifs.add(new Motif("m5_7", 5, r(1,2, 2,3, 3,4, 4,5, 5,2, 5,1, 1,3), 1, 2, 3));
+        motifs.add(new Motif("m5_8", 5, r(1,3, 3,4, 4,5, 5,1, 1,4, 4,2, 2,5, 5,3, 3,2), 1, 5, 6, 7, 8));
+        motifs.add(new Motif("m5_9", 5, r(1,2, 2,3, 3,4, 4,5, 5,3), 1, 2, 3, 4, 5));
+        motifs.add(new Motif("m5_10", 5, r(1,5, 2,3, 3,4, 4,5, 5,3), 1, 3, 5));
+        motifs.add(new Motif("m5_11", 5, r(1,2, 2,4, 4,5, 5,3, 3,4, 4,1), 1, 2));
+        motifs.add(new Motif("m5_12", 5, r(1,4, 4,5, 5,3, 3,4, 4,2), 1, 2, 3));
+        motifs.add(new Motif("m5_13", 5, r(1,2, 2,3, 3,4, 4,5, 5,1, 5,3), 1, 2, 3, 6));
+        motifs.add(new Motif("m5_14", 5, r(1,2, 2,3, 3,4, 5,3, 3,1, 1,5, 5,2), 1, 2, 3));
+        motifs.add(new Motif("m5_15", 5, r(1,2, 2,3, 3,4, 3,5, 5,1), 1, 2, 3));
+        motifs.add(new Motif("m5_16", 5, r(1,3, 3,4, 4,5, 5,1, 5,2, 2,3), 1));
+        motifs.add(new Motif("m5_17", 5, r(1,5, 5,4, 4,3, 3,2), 1, 2, 3, 4));
+        motifs.add(new Motif("m5_18", 5, r(1,4, 4,2, 5,4, 4,3), 1));
+        motifs.add(new Motif("m5_19", 5, r(1,2, 2,4, 4,3, 4,5), 1, 2, 3, 4));
+        motifs.add(new Motif("m5_20", 5, r(1,2, 2,3, 3,4, 4,5, 5,1), 1));
+        motifs.add(new Motif("m5_21", 5, r(1,2, 2,3, 3,4, 4,5, 5,1, 1,3, 3,5, 5,2, 2,4, 4,1), 1));
+        ALL = Collections.unmodifiableList(motifs);
+    }
+}
@@ -0,0 +1,175 @@
+package com.maxdemarzi.graph;
+
+import java.util.*;
+import java.util.concurrent.CancellationException;
+
+/*
+ * Counts motifs around a relationship of an AdjacencySnapshot the same way FindMotifs does with Cypher:
+ * every variant is matched in both directions over distinct nodes, and the distinct sets of
+ * relationships found across all variants are counted.
+ * Unlike the Cypher patterns, only relationships of the snapshot's type take part.
+ * Instances are not thread safe, use one per worker.
+ */
+public class MotifCounter {
+    private final AdjacencySnapshot graph;
+    private final int[] nodes = new int[5];
+    private final int[] chosen = new int[10];
+    private final Set<RelationshipSet> found = new HashSet<>();
+    // System.nanoTime() past which count gives up, checked every 1024 steps
+    private long deadline = Long.MAX_VALUE;
+    private int steps;
+
+    public MotifCounter(AdjacencySnapshot graph) {
+        this.graph = graph;
+    }
+
+    public long[] count(int edge) {
+        long[] counts = new long[Motif.ALL.size()];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = count(edge, Motif.ALL.get(i));
+        }
+        return counts;
+    }
+
+    public long count(int edge, Motif motif) {
+        int source = graph.source(edge);
+        int target = graph.target(edge);
+        if (source == target) {
+            return 0;
+        }
+
+        found.clear();
+        for (int variant = 0; variant < motif.variants(); variant++) {
+            int anchor = motif.anchor(variant);
+            chosen[anchor] = edge;
+            match(motif, variant, anchor, source, target);
+            match(motif, variant, anchor, target, source);
+        }
+        long count = found.size();
+        found.clear();
+        return count;
+    }
+
+    // Throws a CancellationException once System.nanoTime() passes the deadline
+    public long count(int edge, Motif motif, long deadline) {
+        this.deadline = deadline;
+        try {
+            return count(edge, motif);
+        } finally {
+            this.deadline = Long.MAX_VALUE;
+        }
+    }
+
+    private void match(Motif motif, int variant, int anchor, int first, int second) {
+        Arrays.fill(nodes, -1);
+        nodes[motif.from(anchor)] = first;
+        nodes[motif.to(anchor)] = second;
+        extend(motif, motif.plan(variant), 0);
+    }
+
+    private void extend(Motif motif, int[] plan, int step) {
+        if (deadline != Long.MAX_VALUE && (++steps & 1023) == 0 && System.nanoTime() > deadline) {
+            throw new CancellationException("Counting " + motif.getName() + " ran past its deadline");
+        }
+        if (step == plan.length) {
+            found.add(new RelationshipSet(chosen, motif.relationships()));
+            return;
+        }
+
+        int relationship = plan[step];
+        int a = motif.from(relationship);
+        int b = motif.to(relationship);
+        if (nodes[a] >= 0 && nodes[b] >= 0) {
+            // Both ends are bound, try every relationship between them
+            int end = graph.end(nodes[a]);
+            for (int entry = graph.lowerBound(nodes[a], nodes[b]); entry < end && graph.neighbour(entry) == nodes[b]; entry++) {
+                chosen[relationship] = graph.edge(entry);
+                extend(motif, plan, step + 1);
+            }
+        } else {
+            int known = nodes[a] >= 0 ? a : b;
+            int other = known == a ? b : a;
+            int end = graph.end(nodes[known]);
+            for (int entry = graph.begin(nodes[known]); entry < end; entry++) {
+                int neighbour = graph.neighbour(entry);
+                if (bound(neighbour, motif.nodes())) {
+                    continue;
+                }
+                nodes[other] = neighbour;
+                chosen[relationship] = graph.edge(entry);
+                extend(motif, plan, step + 1);
+                nodes[other] = -1;
+            }
+        }
+    }
+
+    private boolean bound(int node, int count) {
+        for (int i = 0; i < count; i++) {
+            if (nodes[i] == node) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public long commonNeighbours(int edge) {
+        int source = graph.source(edge);
+        int target = graph.target(edge);
+        long common = 0;
+        int i = graph.begin(source);
+        int j = graph.begin(target);
+        int last = -1;
+        while (i < graph.end(source) && j < graph.end(target)) {
+            int left = graph.neighbour(i);
+            int right = graph.neighbour(j);
+            if (left < right) {
+                i++;
+            } else if (left > right) {
+                j++;
+            } else {
+                if (left != last && left != source && left != target) {
+                    common++;
+                    last = left;
+                }
+                i++;
+                j++;
+            }
+        }
+        return common;
+    }
+
+    // The motifs whose count follows from the degrees of the endpoints and their common neighbours.
+    // Exact on simple graphs, parallel relationships make it an approximation.
+    public static Map<String, Long> approximate(long startDegree, long endDegree, long common) {
+        Map<String, Long> counts = new HashMap<>();
+        counts.put("m3_1", (startDegree - 1) + (endDegree - 1));
+        counts.put("m3_2", common);
+        counts.put("m4_2", pairs(startDegree - 1) + pairs(endDegree - 1));
+        return counts;
+    }
+
+    private static long pairs(long n) {
+        return n * (n - 1) / 2;
+    }
+
+    private static final class RelationshipSet {
+        private final int[] edges;
+        private final int hash;
+
+        RelationshipSet(int[] chosen, int length) {
+            this.edges = Arrays.copyOf(chosen, length);
+            Arrays.sort(edges);
+            this.hash = Arrays.hashCode(edges);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof RelationshipSet && Arrays.equals(edges, ((RelationshipSet) o).edges);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.maxdemarzi.graph;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Finds the k relationships in the most instances of a motif without counting all of them.
+ * Each worker keeps its own bounded min-heap, and the best k-th count of any worker is shared,
+ * since the overall k-th count can only be higher. Relationships whose upper bound cannot beat it
+ * are skipped. Workers visit their relationships in buckets of descending powers of two of their bound,
+ * so the floor rises early and whole buckets can be left out.
+ */
+public class TopMotifs {
+    private static final int BUCKETS = 64;
+
+    private static double bound(AdjacencySnapshot graph, Motif motif, int edge, long maxDegree, long multiplicity) {
+        return motif.upperBound(graph.degree(graph.source(edge)), graph.degree(graph.target(edge)), maxDegree, multiplicity);
+    }
+
+    // Bucket b > 0 holds bounds in [2^(b - 1), 2^b)
+    private static int bucket(double bound) {
+        if (bound < 1) {
+            return 0;
+        }
+        return Math.min(BUCKETS - 1, 1 + Math.getExponent(bound));
+    }
+
+    // Pairs of relationship index and count, highest count first
+    public static List<long[]> find(AdjacencySnapshot graph, Motif motif, int k, int threads)
+            throws InterruptedException, ExecutionException {
+        long maxDegree = graph.maxDegree();
+        long multiplicity = graph.multiplicity();
+        AtomicLong floor = new AtomicLong(0);
+
+        ExecutorService service = Executors.newFixedThreadPool(threads);
+        List<Future<PriorityQueue<long[]>>> futures = new ArrayList<>();
+        try {
+            for (int i = 0; i < threads; i++) {
+                int thread = i;
+                futures.add(service.submit(() -> {
+                    MotifCounter counter = new MotifCounter(graph);
+                    PriorityQueue<long[]> heap = new PriorityQueue<>(k + 1, Comparator.comparingLong(pair -> pair[1]));
+
+                    // Counting sort of this worker's relationships by bucket of their bound
+                    int[] starts = new int[BUCKETS + 1];
+                    for (int edge = thread; edge < graph.relationshipCount(); edge += threads) {
+                        starts[bucket(bound(graph, motif, edge, maxDegree, multiplicity)) + 1]++;
+                    }
+                    for (int b = 0; b < BUCKETS; b++) {
+                        starts[b + 1] += starts[b];
+                    }
+                    int[] edges = new int[starts[BUCKETS]];
+                    int[] next = Arrays.copyOf(starts, BUCKETS);
+                    for (int edge = thread; edge < graph.relationshipCount(); edge += threads) {
+                        edges[next[bucket(bound(graph, motif, edge, maxDegree, multiplicity))]++] = edge;
+                    }
+
+                    // Bucket 0 only holds bounds of zero, which can never make it
+                    for (int b = BUCKETS - 1; b > 0 && Math.pow(2, b) > floor.get(); b--) {
+                        for (int position = starts[b]; position < starts[b + 1]; position++) {
+                            int edge = edges[position];
+                            if (bound(graph, motif, edge, maxDegree, multiplicity) <= floor.get()) {
+                                continue;
+                            }
+                            long count = counter.count(edge, motif);
+                            if (count == 0 || (heap.size() == k && count <= heap.peek()[1])) {
+                                continue;
+                            }
+                            heap.add(new long[]{edge, count});
+                            if (heap.size() > k) {
+                                heap.poll();
+                            }
+                            if (heap.size() == k) {
+                                long kth = heap.peek()[1];
+                                floor.accumulateAndGet(kth, Math::max);
+                            }
+                        }
+                    }
+                    return heap;
+                }));
+            }
+
+            List<long[]> top = new ArrayList<>();
+            for (Future<PriorityQueue<long[]>> future : futures) {
+                top.addAll(future.get());
+            }
+            top.sort((a, b) -> Long.compare(b[1], a[1]));
+            return top.size() > k ? new ArrayList<>(top.subList(0, k)) : top;
+        } finally {
+            service.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package com.maxdemarzi.results;
+
+import com.maxdemarzi.MotifsConfig;
+import com.maxdemarzi.graph.AdjacencySnapshot;
+import com.maxdemarzi.graph.Motif;
+import com.maxdemarzi.graph.MotifCounter;
+import de.siegmar.fastcsv.writer.CsvAppender;
+import de.siegmar.fastcsv.writer.CsvWriter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+
+// Writes the same file as FindMotifs, counting over an AdjacencySnapshot instead of running Cypher
+public class CountMotifs implements Runnable {
+    private final AdjacencySnapshot graph;
+    private final int thread;
+    private final int threads;
+    private final String path;
+    private final MotifsConfig config;
+    private final ExecutorService splitter;
+
+    public CountMotifs(AdjacencySnapshot graph, int thread, int threads, String path,
+                       MotifsConfig config, ExecutorService splitter) {
+        this.graph = graph;
+        this.thread = thread;
+        this.threads = threads;
+        this.path = FindMotifs.threadPath(path, thread);
+        this.config = config;
+        this.splitter = splitter;
+    }
+
+    @Override
+    public void run() {
+        MotifCounter counter = new MotifCounter(graph);
+        CsvWriter csvWriter = new CsvWriter();
+        try (CsvAppender csvAppender = csvWriter.append(new File(path), StandardCharsets.UTF_8)) {
+            csvAppender.appendField("from");
+            csvAppender.appendField("to");
+            for (Motif motif : Motif.ALL) {
+                csvAppender.appendField(motif.getName());
+            }
+            csvAppender.appendField("supernode");
+            csvAppender.endLine();
+
+            for (int edge = thread; edge < graph.relationshipCount(); edge += threads) {
+                if (!config.inShard(graph.relationshipId(edge))) {
+                    continue;
+                }
+                int source = graph.source(edge);
+                int target = graph.target(edge);
+                csvAppender.appendField(String.valueOf(graph.nodeId(source)));
+                csvAppender.appendField(String.valueOf(graph.nodeId(target)));
+
+                if (config.isSupernode(Math.max(graph.degree(source), graph.degree(target)))) {
+                    Map<String, Long> counts = supernodeCounts(counter, edge);
+                    for (Motif motif : Motif.ALL) {
+                        Long count = counts.get(motif.getName());
+                        csvAppender.appendField(count == null ? "" : String.valueOf(count));
+                    }
+                    csvAppender.appendField(FindMotifs.supernodeFlag(config, counts));
+                } else {
+                    // Hubs a few hops away still make a relationship expensive, give up on it after timeout
+                    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(config.getTimeout());
+                    String flag = "";
+                    for (Motif motif : Motif.ALL) {
+                        String field = "";
+                        if (flag.isEmpty()) {
+                            try {
+                                field = String.valueOf(counter.count(edge, motif, deadline));
+                            } catch (CancellationException e) {
+                                flag = "timeout";
+                            }
+                        }
+                        csvAppender.appendField(field);
+                    }
+                    csvAppender.appendField(flag);
+                }
+                csvAppender.endLine();
+            }
+        } catch (IOException exception) {
+            throw new UncheckedIOException("An error occurred in CountMotifs writing " + path, exception);
+        }
+    }
+
+    private Map<String, Long> supernodeCounts(MotifCounter counter, int edge) {
+        switch (config.getSupernode()) {
+            case APPROXIMATE:
+                return MotifCounter.approximate(graph.degree(graph.source(edge)), graph.degree(graph.target(edge)),
+                        counter.commonNeighbours(edge));
+            case SPLIT:
+                return split(edge);
+            default:
+                return Collections.emptyMap();
+        }
+    }
+
+    // Each motif is counted in its own task with its own counter, all of them giving up timeout from now
+    private Map<String, Long> split(int edge) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(config.getTimeout());
+        Map<String, Future<Long>> futures = new HashMap<>();
+        for (Motif motif : Motif.ALL) {
+            futures.put(motif.getName(), splitter.submit(() -> new MotifCounter(graph).count(edge, motif, deadline)));
+        }
+
+        Map<String, Long> counts = new HashMap<>();
+        for (Map.Entry<String, Future<Long>> entry : futures.entrySet()) {
+            try {
+                counts.put(entry.getKey(), entry.getValue().get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Split motif " + entry.getKey() + " interrupted", e);
+            } catch (ExecutionException e) {
+                if (!(e.getCause() instanceof CancellationException)) {
+                    throw new IllegalStateException("Split motif " + entry.getKey() + " failed", e.getCause());
+                }
+            }
+        }
+        return counts;
+    }
+}
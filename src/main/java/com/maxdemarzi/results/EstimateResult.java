@@ -0,0 +1,31 @@
+package com.maxdemarzi.results;
+
+import java.util.Map;
+
+public class EstimateResult {
+    public final long relationships;
+    public final long nodes;
+    public final long supernodeRelationships;
+    public final long bucketBytes;
+    public final long snapshotBytes;
+    public final long outputBytes;
+    public final Map<String, Object> runtimeMillis;
+    public final long sampledNodes;
+    public final long timedRelationships;
+    public final long cutOffRelationships;
+
+    public EstimateResult(long relationships, long nodes, long supernodeRelationships, long bucketBytes,
+                          long snapshotBytes, long outputBytes, Map<String, Object> runtimeMillis,
+                          long sampledNodes, long timedRelationships, long cutOffRelationships) {
+        this.relationships = relationships;
+        this.nodes = nodes;
+        this.supernodeRelationships = supernodeRelationships;
+        this.bucketBytes = bucketBytes;
+        this.snapshotBytes = snapshotBytes;
+        this.outputBytes = outputBytes;
+        this.runtimeMillis = runtimeMillis;
+        this.sampledNodes = sampledNodes;
+        this.timedRelationships = timedRelationships;
+        this.cutOffRelationships = cutOffRelationships;
+    }
+}
@@ -1,5 +1,7 @@
 package com.maxdemarzi.results;
 
+import com.maxdemarzi.MotifsConfig;
+import com.maxdemarzi.graph.MotifCounter;
 import de.siegmar.fastcsv.writer.CsvAppender;
 import de.siegmar.fastcsv.writer.CsvWriter;
 import org.neo4j.graphdb.*;
@@ -8,8 +10,10 @@ import org.roaringbitmap.longlong.Roaring64NavigableMap;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.stream.Collectors;
 
 public class FindMotifs implements Runnable {
@@ -17,16 +21,31 @@ public class FindMotifs implements Runnable {
     private final Log log;
     private final Roaring64NavigableMap rels;
     private final String path;
+    private final MotifsConfig config;
+    private final ExecutorService splitter;
 
     private static final ArrayList<ArrayList<String>> patterns;
+    // The same patterns anchored on every id of $rel_ids, grouped by anchor
+    private static final ArrayList<ArrayList<String>> batchedPatterns;
 
     public FindMotifs(GraphDatabaseService db, Log log, Roaring64NavigableMap rels, int thread, String path) {
+        this(db, log, rels, thread, path, MotifsConfig.DEFAULT, null);
+    }
+
+    public FindMotifs(GraphDatabaseService db, Log log, Roaring64NavigableMap rels, int thread, String path,
+                      MotifsConfig config, ExecutorService splitter) {
       this.db = db;
       this.log = log;
       this.rels = rels;
-      this.path = path.substring(0, path.lastIndexOf("."))
-              + "-" + thread
-              + path.substring(path.lastIndexOf("."));
+      this.config = config;
+      this.splitter = splitter;
+      this.path = threadPath(path, thread);
+    }
+
+    public static String threadPath(String path, int thread) {
+        return path.substring(0, path.lastIndexOf("."))
+                + "-" + thread
+                + path.substring(path.lastIndexOf("."));
     }
 
     static  {
@@ -582,6 +601,18 @@ public class FindMotifs implements Runnable {
         patterns.add(m5_19);
         patterns.add(m5_20);
         patterns.add(m5_21);
+
+        batchedPatterns = new ArrayList<>();
+        for (ArrayList<String> pattern : patterns) {
+            ArrayList<String> batched = new ArrayList<>();
+            batched.add(pattern.get(0));
+            for (String motif : pattern.subList(1, pattern.size())) {
+                batched.add("UNWIND $rel_ids AS rel_id " +
+                        motif.replace("$rel_id", "rel_id")
+                             .replaceFirst("RETURN (.*) AS relationships$", "RETURN rel_id, collect($1) AS relationships"));
+            }
+            batchedPatterns.add(batched);
+        }
     }
 
     @Override
@@ -594,52 +625,24 @@ public class FindMotifs implements Runnable {
             for (ArrayList<String> pattern : patterns) {
                 csvAppender.appendField(pattern.get(0));
             }
+            csvAppender.appendField("supernode");
             csvAppender.endLine();
 
             Iterator<Long> relIds = rels.iterator();
+            while (relIds.hasNext()) {
+                List<Long> block = new ArrayList<>();
+                while (relIds.hasNext() && block.size() < config.getBatchSize()) {
+                    block.add(relIds.next());
+                }
+                Map<Long, int[]> batched = config.getBatchSize() > 1 ? batch(block) : Collections.emptyMap();
 
-            try(Transaction tx = db.beginTx()) {
-                Map<String, Object> parameters = new HashMap<>();
-                Result result;
-                List<Long> relationships;
-
-                while (relIds.hasNext()) {
-                    long relId = relIds.next();
-                    log.info("Finding Motifs for " + relId);
-                    Relationship relationship = db.getRelationshipById(relId);
-                    csvAppender.appendField(String.valueOf(relationship.getStartNodeId()));
-                    csvAppender.appendField(String.valueOf(relationship.getEndNodeId()));
-
-                    parameters.put("rel_id", relId);
-
-                    for (ArrayList<String> pattern : patterns) {
-                        Set<List<Long>> allRelationships = new HashSet<>();
-                        for (String motif : pattern.subList(1, pattern.size())) {
-
-                            result = db.execute(motif, parameters);
-
-                            while (result.hasNext()) {
-                                boolean unique = true;
-                                relationships = (List<Long>)result.next().get("relationships");
-
-                                for (List<Long> rels : allRelationships) {
-                                    if (rels.containsAll(relationships)) {
-                                        unique = false;
-                                        break; };
-                                }
-                                if (unique) {
-                                    allRelationships.add(relationships);
-                                }
-                            }
-                            csvAppender.appendField(String.valueOf(allRelationships.size()));
-                        }
+                for (long relId : block) {
+                    for (String field : row(relId, batched.get(relId))) {
+                        csvAppender.appendField(field);
                     }
-
                     csvAppender.endLine();
-                    csvAppender.flush();
                 }
-
-                tx.success();
+                csvAppender.flush();
             }
 
         } catch (IOException exception) {
@@ -647,6 +650,250 @@ public class FindMotifs implements Runnable {
             log.error(Arrays.stream(exception.getStackTrace())
                     .map(Objects::toString)
                     .collect(Collectors.joining("\n")));
+            throw new UncheckedIOException("An error occurred in FindMotifs writing " + path, exception);
+        }
+    }
+
+    // Counts the block in one transaction with the time of all its relationships, if it runs out they are counted one by one
+    private Map<Long, int[]> batch(List<Long> block) {
+        try (Transaction tx = db.beginTx(config.getTimeout() * block.size(), TimeUnit.MILLISECONDS)) {
+            Map<Long, int[]> counts = countBatch(block);
+            tx.success();
+            return counts;
+        } catch (RuntimeException e) {
+            if (!terminated(e)) {
+                throw e;
+            }
+            log.warn("Batch of " + block.size() + " relationships ran past " + config.getTimeout() + "ms each, counting them one by one");
+            return Collections.emptyMap();
+        }
+    }
+
+    /*
+     * The fields of a relationship's row. It is counted in its own transaction, terminated after timeout,
+     * since the untyped patterns expand through hubs a few hops away that maxDegree doesn't see.
+     * Counts not finished by then are left blank and the row is flagged timeout.
+     */
+    private List<String> row(long relId, int[] batched) {
+        List<String> row = new ArrayList<>();
+        String flag = "";
+        try (Transaction tx = db.beginTx(config.getTimeout(), TimeUnit.MILLISECONDS)) {
+            log.info("Finding Motifs for " + relId);
+            Relationship relationship = db.getRelationshipById(relId);
+            row.add(String.valueOf(relationship.getStartNodeId()));
+            row.add(String.valueOf(relationship.getEndNodeId()));
+
+            Map<String, Object> parameters = new HashMap<>();
+            parameters.put("rel_id", relId);
+
+            long degree = degree(relationship);
+            if (config.isSupernode(degree)) {
+                log.info("Relationship " + relId + " touches a supernode of degree " + degree
+                        + ", using strategy " + config.getSupernode());
+                Map<String, Long> counts = supernodeCounts(relationship, parameters);
+                for (ArrayList<String> pattern : patterns) {
+                    Long count = counts.get(pattern.get(0));
+                    row.add(count == null ? "" : String.valueOf(count));
+                }
+                flag = supernodeFlag(config, counts);
+            } else if (batched != null) {
+                for (int count : batched) {
+                    row.add(String.valueOf(count));
+                }
+            } else {
+                for (ArrayList<String> pattern : patterns) {
+                    row.add(String.valueOf(count(db, pattern, parameters)));
+                }
+            }
+            tx.success();
+        } catch (RuntimeException e) {
+            if (!terminated(e)) {
+                throw e;
+            }
+            // Closing throws too, a row completed by then is kept
+            if (row.size() < 2 + patterns.size()) {
+                log.warn("Relationship " + relId + " ran past " + config.getTimeout() + "ms, leaving the rest of its counts blank");
+                flag = "timeout";
+            }
+        }
+        while (row.size() < 2 + patterns.size()) {
+            row.add("");
+        }
+        row.add(flag);
+        return row;
+    }
+
+    // Whether a transaction ran past its timeout, Cypher reports it with a status code rather than the kernel's exception
+    public static boolean terminated(RuntimeException e) {
+        if (e instanceof TransactionTerminatedException) {
+            return true;
+        }
+        return e instanceof QueryExecutionException && (((QueryExecutionException) e).getStatusCode().endsWith("Terminated")
+                || ((QueryExecutionException) e).getStatusCode().endsWith("TimedOut"));
+    }
+
+    public static List<String> names() {
+        return patterns.stream().map(pattern -> pattern.get(0)).collect(Collectors.toList());
+    }
+
+    public static int count(GraphDatabaseService db, long relId, String name) {
+        for (ArrayList<String> pattern : patterns) {
+            if (pattern.get(0).equals(name)) {
+                return count(db, pattern, Collections.<String, Object>singletonMap("rel_id", relId));
+            }
+        }
+        throw new IllegalArgumentException("Unknown motif: " + name);
+    }
+
+    // Runs every variant of a motif and counts the distinct sets of relationships they find
+    private static int count(GraphDatabaseService db, ArrayList<String> pattern, Map<String, Object> parameters) {
+        Set<List<Long>> allRelationships = new HashSet<>();
+        for (String motif : pattern.subList(1, pattern.size())) {
+            Result result = db.execute(motif, parameters);
+
+            while (result.hasNext()) {
+                addUnique(allRelationships, (List<Long>)result.next().get("relationships"));
+            }
+        }
+        return allRelationships.size();
+    }
+
+    private static void addUnique(Set<List<Long>> allRelationships, List<Long> relationships) {
+        for (List<Long> rels : allRelationships) {
+            if (rels.containsAll(relationships)) {
+                return;
+            }
+        }
+        allRelationships.add(relationships);
+    }
+
+    // Counts every motif of the block with one query per variant, leaving supernode relationships out.
+    // Counts are in the order of names(), it needs an open transaction.
+    public Map<Long, int[]> countBatch(List<Long> block) {
+        List<Long> relIds = new ArrayList<>();
+        for (long relId : block) {
+            if (!config.isSupernode(degree(db.getRelationshipById(relId)))) {
+                relIds.add(relId);
+            }
+        }
+        Map<String, Object> parameters = Collections.<String, Object>singletonMap("rel_ids", relIds);
+
+        Map<Long, int[]> counts = new HashMap<>();
+        for (long relId : relIds) {
+            counts.put(relId, new int[batchedPatterns.size()]);
+        }
+        for (int i = 0; i < batchedPatterns.size(); i++) {
+            ArrayList<String> pattern = batchedPatterns.get(i);
+            Map<Long, Set<List<Long>>> allRelationships = new HashMap<>();
+            for (String motif : pattern.subList(1, pattern.size())) {
+                Result result = db.execute(motif, parameters);
+
+                while (result.hasNext()) {
+                    Map<String, Object> row = result.next();
+                    Set<List<Long>> anchored = allRelationships.computeIfAbsent((Long) row.get("rel_id"), id -> new HashSet<>());
+                    for (List<Long> relationships : (List<List<Long>>) row.get("relationships")) {
+                        addUnique(anchored, relationships);
+                    }
+                }
+            }
+            for (Map.Entry<Long, Set<List<Long>>> entry : allRelationships.entrySet()) {
+                counts.get(entry.getKey())[i] = entry.getValue().size();
+            }
+        }
+        return counts;
+    }
+
+    private static long degree(Relationship relationship) {
+        return Math.max(relationship.getStartNode().getDegree(), relationship.getEndNode().getDegree());
+    }
+
+    private Map<String, Long> supernodeCounts(Relationship relationship, Map<String, Object> parameters) {
+        switch (config.getSupernode()) {
+            case APPROXIMATE:
+                return approximate(relationship);
+            case SPLIT:
+                return split(parameters);
+            default:
+                return Collections.emptyMap();
+        }
+    }
+
+    private Map<String, Long> approximate(Relationship relationship) {
+        Node start = relationship.getStartNode();
+        Node end = relationship.getEndNode();
+        long startDegree = start.getDegree();
+        long endDegree = end.getDegree();
+
+        Node smaller = startDegree <= endDegree ? start : end;
+        Node larger = smaller.equals(start) ? end : start;
+        Set<Long> neighbours = new HashSet<>();
+        for (Relationship r : smaller.getRelationships()) {
+            neighbours.add(r.getOtherNodeId(smaller.getId()));
+        }
+        neighbours.remove(larger.getId());
+        long common = 0;
+        for (Relationship r : larger.getRelationships()) {
+            if (neighbours.remove(r.getOtherNodeId(larger.getId()))) {
+                common++;
+            }
+        }
+
+        return MotifCounter.approximate(startDegree, endDegree, common);
+    }
+
+    /*
+     * Each motif is counted in its own task, each with its own transaction since they are thread bound.
+     * All of them share one deadline, timeout after the relationship was reached, so a hub costs at most that
+     * no matter its degree. Transactions still running then are terminated and their motifs left out.
+     */
+    private Map<String, Long> split(Map<String, Object> parameters) {
+        Map<String, Object> copy = new HashMap<>(parameters);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(config.getTimeout());
+        Map<String, Transaction> transactions = new ConcurrentHashMap<>();
+        Map<String, Future<Integer>> futures = new HashMap<>();
+        for (ArrayList<String> pattern : patterns) {
+            futures.put(pattern.get(0), splitter.submit(() -> {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    throw new CancellationException("Deadline passed before " + pattern.get(0) + " started");
+                }
+                try (Transaction tx = db.beginTx(remaining, TimeUnit.NANOSECONDS)) {
+                    transactions.put(pattern.get(0), tx);
+                    int count = count(db, pattern, copy);
+                    tx.success();
+                    return count;
+                } finally {
+                    transactions.remove(pattern.get(0));
+                }
+            }));
+        }
+
+        Map<String, Long> counts = new HashMap<>();
+        for (Map.Entry<String, Future<Integer>> entry : futures.entrySet()) {
+            try {
+                counts.put(entry.getKey(), entry.getValue().get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS).longValue());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                log.error("Split motif " + entry.getKey() + " interrupted");
+            } catch (TimeoutException e) {
+                log.warn("Split motif " + entry.getKey() + " ran past " + config.getTimeout() + "ms, terminating it");
+                entry.getValue().cancel(true);
+                Transaction tx = transactions.get(entry.getKey());
+                if (tx != null) {
+                    tx.terminate();
+                }
+            } catch (ExecutionException e) {
+                log.error("Split motif " + entry.getKey() + " failed: " + e.getCause());
+            }
+        }
+        return counts;
+    }
+
+    // The supernode column, split relationships missing some counts are told apart from complete ones
+    static String supernodeFlag(MotifsConfig config, Map<String, Long> counts) {
+        if (config.getSupernode() == MotifsConfig.Supernode.SPLIT && counts.size() < patterns.size()) {
+            return "split_incomplete";
         }
+        return config.getSupernode().name().toLowerCase(Locale.ROOT);
     }
 }
@@ -0,0 +1,15 @@
+package com.maxdemarzi.results;
+
+public class MotifCountResult {
+    public final long relationship;
+    public final long from;
+    public final long to;
+    public final long count;
+
+    public MotifCountResult(long relationship, long from, long to, long count) {
+        this.relationship = relationship;
+        this.from = from;
+        this.to = to;
+        this.count = count;
+    }
+}
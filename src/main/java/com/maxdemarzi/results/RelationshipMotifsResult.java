@@ -0,0 +1,17 @@
+package com.maxdemarzi.results;
+
+import java.util.Map;
+
+public class RelationshipMotifsResult {
+    public final long relationship;
+    public final long from;
+    public final long to;
+    public final Map<String, Object> motifs;
+
+    public RelationshipMotifsResult(long relationship, long from, long to, Map<String, Object> motifs) {
+        this.relationship = relationship;
+        this.from = from;
+        this.to = to;
+        this.motifs = motifs;
+    }
+}
@@ -1,11 +1,42 @@
 package com.maxdemarzi;
 
+import com.maxdemarzi.graph.AdjacencySnapshot;
+import com.maxdemarzi.results.FindMotifs;
 import org.junit.jupiter.api.*;
 import org.neo4j.driver.v1.*;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.RelationshipType;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.factory.GraphDatabaseSettings;
 import org.neo4j.harness.ServerControls;
 import org.neo4j.harness.TestServerBuilders;
+import org.neo4j.kernel.internal.GraphDatabaseAPI;
+import org.neo4j.logging.NullLog;
+import org.roaringbitmap.longlong.Roaring64NavigableMap;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static java.util.Collections.singletonMap;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 import static org.neo4j.driver.v1.Values.parameters;
 
 public class MotifsTest {
@@ -15,6 +46,7 @@ public class MotifsTest {
     static void startNeo4j() {
         neo4j = TestServerBuilders.newInProcessBuilder()
                 .withProcedure(Procedures.class)
+                .withConfig(GraphDatabaseSettings.transaction_monitor_check_interval, "100ms")
                 .withFixture(MODEL_STATEMENT)
                 .newServer();
     }
@@ -44,6 +76,445 @@ public class MotifsTest {
         }
     }
 
+    @Test
+    void shouldSkipSupernodes() throws IOException
+    {
+        try( Driver driver = GraphDatabase.driver( neo4j.boltURI() , Config.build().withoutEncryption().toConfig() ) )
+        {
+            Session session = driver.session();
+
+            // When every product with more than 3 neighbours is treated as a supernode
+            StatementResult result = session.run( "CALL com.maxdemarzi.motifs($type, $file, $config)",
+                    parameters( "type", "ALSO_PURCHASED", "file", "/tmp/also_purchased_supernodes.csv",
+                            "config", parameters( "maxDegree", 3, "supernodeStrategy", "skip" ) ) );
+            assertThat(result.single().get("value").asString()).startsWith("Results written to");
+
+            // Then the first relationship, between p1 and p2, is flagged instead of counted
+            String[] row = rows("/tmp/also_purchased_supernodes.csv").get(firstRelationship(session));
+            assertThat(row[row.length - 1]).isEqualTo("skip");
+            assertThat(Arrays.copyOfRange(row, 2, row.length - 1)).containsOnly("");
+        }
+    }
+
+    @Test
+    void shouldApproximateSupernodes() throws IOException
+    {
+        try( Driver driver = GraphDatabase.driver( neo4j.boltURI() , Config.build().withoutEncryption().toConfig() ) )
+        {
+            Session session = driver.session();
+
+            // When I count exactly and once more approximating every product with more than 3 neighbours
+            session.run( "CALL com.maxdemarzi.motifs($type, $file)",
+                    parameters( "type", "ALSO_PURCHASED", "file", "/tmp/also_purchased_exact.csv" ) ).consume();
+            session.run( "CALL com.maxdemarzi.motifs($type, $file, $config)",
+                    parameters( "type", "ALSO_PURCHASED", "file", "/tmp/also_purchased_approximate.csv",
+                            "config", parameters( "maxDegree", 3, "supernodeStrategy", "approximate" ) ) ).consume();
+
+            // Then p1 and p2, with 5 neighbours each and 3 in common, get the exact counts of the simple graph
+            String[] exact = rows("/tmp/also_purchased_exact.csv").get(firstRelationship(session));
+            String[] approximate = rows("/tmp/also_purchased_approximate.csv").get(firstRelationship(session));
+            assertThat(approximate[approximate.length - 1]).isEqualTo("approximate");
+            int m3_1 = 2, m3_2 = 3, m4_2 = 5;
+            assertThat(new String[]{approximate[m3_1], approximate[m3_2], approximate[m4_2]}).containsExactly("8", "3", "12");
+            assertThat(new String[]{exact[m3_1], exact[m3_2], exact[m4_2]}).containsExactly("8", "3", "12");
+            assertThat(approximate[m4_2 + 1]).isEmpty();
+        }
+    }
+
+    @Test
+    void shouldSplitSupernodes() throws IOException
+    {
+        try( Driver driver = GraphDatabase.driver( neo4j.boltURI() , Config.build().withoutEncryption().toConfig() ) )
+        {
+            Session session = driver.session();
+
+            // When I count once as usual and once splitting every product with more than 3 neighbours
+            session.run( "CALL com.maxdemarzi.motifs($type, $file)",
+                    parameters( "type", "ALSO_PURCHASED", "file", "/tmp/also_purchased_unsplit.csv" ) ).consume();
+            session.run( "CALL com.maxdemarzi.motifs($type, $file, $config)",
+                    parameters( "type", "ALSO_PURCHASED", "file", "/tmp/also_purchased_split.csv",
+                            "config", parameters( "maxDegree", 3, "supernodeStrategy", "split" ) ) ).consume();
+
+            // Then the split relationships are flagged and have the same counts
+            Map<String, String[]> unsplit = rows("/tmp/also_purchased_unsplit.csv");
+            Map<String, String[]> split = rows("/tmp/also_purchased_split.csv");
+            assertThat(split.keySet()).isEqualTo(unsplit.keySet()).hasSize(13);
+            long flagged = 0;
+            for (Map.Entry<String, String[]> entry : split.entrySet()) {
+                String[] row = entry.getValue();
+                String[] expected = unsplit.get(entry.getKey());
+                assertThat(Arrays.copyOf(row, row.length - 1)).containsExactly(Arrays.copyOf(expected, expected.length - 1));
+                assertThat(row[row.length - 1]).isIn("split", "");
+                flagged += row[row.length - 1].isEmpty() ? 0 : 1;
+            }
+            // Only p6 to p7 stays below the threshold
+            assertThat(flagged).isEqualTo(12);
+        }
+    }
+
+    @Test
+    void shouldTimeOutRelationshipsNearHubs() throws IOException
+    {
+        try( Driver driver = GraphDatabase.driver( neo4j.boltURI() , Config.build().withoutEncryption().toConfig() ) )
+        {
+            Session session = driver.session();
+
+            // Given p6, a neighbour of p1 below the threshold so far, viewed by 3000 people
+            session.run( "MATCH (p6)-[r:ALSO_PURCHASED]->() WITH p6, r ORDER BY ID(r) DESC LIMIT 1 " +
+                    "UNWIND range(1, 3000) AS i CREATE (p6)<-[:VIEWED]-(:Viewer)" ).consume();
+            try {
+                // When relationships may take at most 200ms
+                session.run( "CALL com.maxdemarzi.motifs($type, $file, $config)",
+                        parameters( "type", "ALSO_PURCHASED", "file", "/tmp/also_purchased_hub.csv",
+                                "config", parameters( "maxDegree", 10, "timeout", 200 ) ) ).consume();
+
+                // Then p1 to p2, whose m5 patterns run through the hub two hops from p2, gives up instead of waiting on it
+                Map<String, String[]> rows = rows("/tmp/also_purchased_hub.csv");
+                assertThat(rows).hasSize(13);
+                String[] row = rows.get(firstRelationship(session));
+                assertThat(row[row.length - 1]).isEqualTo("timeout");
+                assertThat(row[row.length - 2]).isEmpty();
+            } finally {
+                session.run( "MATCH (v:Viewer) DETACH DELETE v" ).consume();
+            }
+        }
+    }
+
+    @Test
+    void shouldReuseSnapshot()
+    {
+        try( Driver driver = GraphDatabase.driver( neo4j.boltURI() , Config.build().withoutEncryption().toConfig() ) )
+        {
+            Session session = driver.session();
+            Path file = Paths.get("/tmp/also_purchased.snapshot");
+            Files.deleteIfExists(file);
+
+            // When I run twice against the same unchanged graph
+            List<Object> fileKeys = new ArrayList<>();
+            for (int run = 0; run < 2; run++) {
+                snapshotMotifs(session);
+                fileKeys.add(Files.readAttributes(file, BasicFileAttributes.class).fileKey());
+            }
+
+            // Then the second run maps the same file instead of writing a new one
+            assertThat(fileKeys.get(1)).isEqualTo(fileKeys.get(0));
+
+            // And the snapshot holds every ALSO_PURCHASED relationship
+            AdjacencySnapshot snapshot = AdjacencySnapshot.map(file.toFile());
+            assertThat(snapshot.getType()).isEqualTo("ALSO_PURCHASED");
+            assertThat(snapshot.relationshipCount()).isEqualTo(13);
+            assertThat(snapshot.nodeCount()).isEqualTo(7);
+
+            // When something is committed in between
+            session.run( "CREATE (:SnapshotTest)" ).consume();
+            session.run( "MATCH (n:SnapshotTest) DELETE n" ).consume();
+            snapshotMotifs(session);
+
+            // Then the snapshot is rebuilt, replacing the file, at the new transaction
+            AdjacencySnapshot rebuilt = AdjacencySnapshot.map(file.toFile());
+            assertThat(Files.readAttributes(file, BasicFileAttributes.class).fileKey()).isNotEqualTo(fileKeys.get(0));
+            assertThat(rebuilt.getLastTxId()).isGreaterThan(snapshot.getLastTxId());
+            assertThat(rebuilt.relationshipCount()).isEqualTo(13);
+
+            // When the file was taken of another store at the same transaction
+            AdjacencySnapshot.Builder other = new AdjacencySnapshot.Builder("ALSO_PURCHASED",
+                    rebuilt.getStoreId() + 1, rebuilt.getLastTxId());
+            other.add(0, 0, 1);
+            other.build().write(file.toFile());
+            snapshotMotifs(session);
+
+            // Then it is rebuilt from this store
+            AdjacencySnapshot ours = AdjacencySnapshot.map(file.toFile());
+            assertThat(ours.getStoreId()).isEqualTo(rebuilt.getStoreId());
+            assertThat(ours.getLastTxId()).isEqualTo(rebuilt.getLastTxId());
+            assertThat(ours.relationshipCount()).isEqualTo(13);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void snapshotMotifs(Session session) {
+        StatementResult result = session.run( "CALL com.maxdemarzi.motifs($type, $file, $config)",
+                parameters( "type", "ALSO_PURCHASED", "file", "/tmp/also_purchased_snapshot_motifs.csv",
+                        "config", parameters( "snapshot", "/tmp/also_purchased.snapshot" ) ) );
+        assertThat(result.single().get("value").asString()).startsWith("Results written to");
+    }
+
+    @Test
+    void shouldFindMotifsForRelationships()
+    {
+        try( Driver driver = GraphDatabase.driver( neo4j.boltURI() , Config.build().withoutEncryption().toConfig() ) )
+        {
+            Session session = driver.session();
+            long id = session.run( "MATCH ()-[r:ALSO_PURCHASED]->() RETURN min(ID(r)) AS id" ).single().get("id").asLong();
+
+            // When I ask for the same relationship twice, the second time from the cache
+            for (int run = 0; run < 2; run++) {
+                Record record = session.run( "CALL com.maxdemarzi.motifs.forRelationships($ids, $motifs)",
+                        parameters( "ids", singletonList(id), "motifs", asList("m3_1", "m3_2") ) ).single();
+
+                // Then p1 and p2 share three neighbours in the five product clique
+                assertThat(record.get("relationship").asLong()).isEqualTo(id);
+                assertThat(record.get("motifs").get("m3_2").asLong()).isEqualTo(3L);
+            }
+
+            // And adding a neighbour invalidates it on the next lookup, the commit only notes the nodes it touched
+            session.run( "MATCH (p1)-[r]->(p2) WHERE ID(r) = $id CREATE (p1)<-[:ALSO_PURCHASED]-(:Product {temporary: true})-[:ALSO_PURCHASED]->(p2)",
+                    parameters( "id", id ) ).consume();
+            assertThat(MotifCache.forDatabase(neo4j.graph()).get(id)).containsEntry("m3_2", 3L);
+            Record record = session.run( "CALL com.maxdemarzi.motifs.forRelationships($ids, $motifs)",
+                    parameters( "ids", singletonList(id), "motifs", singletonList("m3_2") ) ).single();
+            assertThat(record.get("motifs").get("m3_2").asLong()).isEqualTo(4L);
+
+            session.run( "MATCH (p:Product {temporary: true}) DETACH DELETE p" ).consume();
+        }
+    }
+
+    @Test
+    void shouldForgetCacheOnShutdown()
+    {
+        // Given a cache for another database
+        ServerControls other = TestServerBuilders.newInProcessBuilder().withProcedure(Procedures.class).newServer();
+        File storeDir = ((GraphDatabaseAPI) other.graph()).getStoreDir();
+        MotifCache.forDatabase(other.graph());
+        assertThat(MotifCache.isCached(storeDir)).isTrue();
+
+        // When it shuts down
+        other.close();
+
+        // Then its cache is gone, along with its transaction event handler
+        assertThat(MotifCache.isCached(storeDir)).isFalse();
+    }
+
+    @Test
+    void shouldEstimateMotifs()
+    {
+        try( Driver driver = GraphDatabase.driver( neo4j.boltURI() , Config.build().withoutEncryption().toConfig() ) )
+        {
+            Session session = driver.session();
+
+            // When I estimate a run before launching it
+            Record record = session.run( "CALL com.maxdemarzi.motifs.estimate($type, $config)",
+                    parameters( "type", "ALSO_PURCHASED", "config", parameters( "sampleSize", 100, "timedSample", 3, "timedTimeout", 60000 ) ) ).single();
+
+            // Then the relationships come straight from the count store
+            assertThat(record.get("relationships").asLong()).isEqualTo(13L);
+            assertThat(record.get("snapshotBytes").asLong()).isPositive();
+            assertThat(record.get("outputBytes").asLong()).isPositive();
+            assertThat(record.get("runtimeMillis").asMap()).containsKeys("m3", "m4", "m5", "total");
+            assertThat(record.get("timedRelationships").asLong()).isEqualTo(3L);
+            assertThat(record.get("cutOffRelationships").asLong()).isZero();
+
+            // And relationships that can't be counted in time are cut off instead of waited for
+            record = session.run( "CALL com.maxdemarzi.motifs.estimate($type, $config)",
+                    parameters( "type", "ALSO_PURCHASED", "config", parameters( "sampleSize", 100, "timedSample", 3, "timedTimeout", 1 ) ) ).single();
+            assertThat(record.get("timedRelationships").asLong() + record.get("cutOffRelationships").asLong()).isEqualTo(3L);
+            assertThat(record.get("cutOffRelationships").asLong()).isPositive();
+            assertThat(record.get("runtimeMillis").asMap()).containsKeys("cutOff", "total");
+
+            // And split supernode relationships are costed at their timeout, while skipped ones cost nothing
+            int threads = Runtime.getRuntime().availableProcessors();
+            for (String strategy : asList("skip", "split")) {
+                record = session.run( "CALL com.maxdemarzi.motifs.estimate($type, $config)",
+                        parameters( "type", "ALSO_PURCHASED", "config", parameters( "sampleSize", 1000, "timedSample", 3,
+                                "maxDegree", 3, "supernodeStrategy", strategy, "timeout", 1000 ) ) ).single();
+                long supernodeRelationships = record.get("supernodeRelationships").asLong();
+                assertThat(supernodeRelationships).isPositive();
+                assertThat(record.get("runtimeMillis").get("supernode").asLong())
+                        .isEqualTo(strategy.equals("skip") ? 0 : supernodeRelationships * 1000 / threads);
+            }
+        }
+    }
+
+    @Test
+    void shouldMatchBatchedMotifs() throws IOException
+    {
+        try( Driver driver = GraphDatabase.driver( neo4j.boltURI() , Config.build().withoutEncryption().toConfig() ) )
+        {
+            Session session = driver.session();
+
+            // When I count once per relationship and once in batches
+            session.run( "CALL com.maxdemarzi.motifs($type, $file, $config)",
+                    parameters( "type", "ALSO_PURCHASED", "file", "/tmp/also_purchased_single.csv",
+                            "config", parameters( "batchSize", 1 ) ) ).consume();
+            session.run( "CALL com.maxdemarzi.motifs($type, $file, $config)",
+                    parameters( "type", "ALSO_PURCHASED", "file", "/tmp/also_purchased_batched.csv",
+                            "config", parameters( "batchSize", 5 ) ) ).consume();
+
+            // Then every thread writes the same counts
+            Map<String, String[]> single = rows("/tmp/also_purchased_single.csv");
+            Map<String, String[]> batched = rows("/tmp/also_purchased_batched.csv");
+            assertThat(batched.keySet()).isEqualTo(single.keySet()).hasSize(13);
+            for (Map.Entry<String, String[]> entry : batched.entrySet()) {
+                assertThat(entry.getValue()).containsExactly(single.get(entry.getKey()));
+            }
+        }
+
+        // And one batch of every relationship, however many threads there are, counts what one query per relationship does
+        GraphDatabaseService db = neo4j.graph();
+        try (Transaction tx = db.beginTx()) {
+            List<Long> ids = new ArrayList<>();
+            for (Relationship relationship : db.getAllRelationships()) {
+                if (relationship.isType(RelationshipType.withName("ALSO_PURCHASED"))) {
+                    ids.add(relationship.getId());
+                }
+            }
+            FindMotifs findMotifs = new FindMotifs(db, NullLog.getInstance(), new Roaring64NavigableMap(), 0,
+                    "/tmp/also_purchased_unused.csv", new MotifsConfig(singletonMap("batchSize", (Object) 13L)), null);
+            Map<Long, int[]> counts = findMotifs.countBatch(ids);
+
+            assertThat(counts).hasSize(13);
+            List<String> names = FindMotifs.names();
+            for (long id : ids) {
+                for (int i = 0; i < names.size(); i++) {
+                    assertThat(counts.get(id)[i]).as(names.get(i) + " of " + id).isEqualTo(FindMotifs.count(db, id, names.get(i)));
+                }
+            }
+            tx.success();
+        }
+    }
+
+    @Test
+    void shouldFindTopKRelationships()
+    {
+        try( Driver driver = GraphDatabase.driver( neo4j.boltURI() , Config.build().withoutEncryption().toConfig() ) )
+        {
+            Session session = driver.session();
+
+            // When I ask for the top relationships of motifs with distinct counts, and of the 5-clique whose
+            // 10 relationships all tie at one
+            for (Object[] query : new Object[][]{{"m3_1", 3}, {"m3_2", 5}, {"m4_2", 4}, {"m4_4", 3}, {"m5_21", 3}, {"m5_21", 20}}) {
+                String motif = (String) query[0];
+                int k = (int) query[1];
+                List<Record> records = session.run( "CALL com.maxdemarzi.motifs.topK($type, $motif, $k)",
+                        parameters( "type", "ALSO_PURCHASED", "motif", motif, "k", k ) ).list();
+
+                // Then they match a ranking of every relationship counted one by one, highest first
+                Map<Long, Long> exhaustive = exhaustiveCounts(motif);
+                List<Long> ranked = new ArrayList<>();
+                exhaustive.values().stream().filter(count -> count > 0)
+                        .sorted(Comparator.reverseOrder()).limit(k).forEach(ranked::add);
+                List<Long> counts = new ArrayList<>();
+                Set<Long> ids = new HashSet<>();
+                for (Record record : records) {
+                    long id = record.get("relationship").asLong();
+                    assertThat(record.get("count").asLong()).as(motif + " of " + id).isEqualTo(exhaustive.get(id));
+                    counts.add(record.get("count").asLong());
+                    ids.add(id);
+                }
+                assertThat(counts).as(motif + " top " + k).isEqualTo(ranked);
+                assertThat(ids).hasSize(records.size());
+
+                // And every relationship above the k-th count is in them, ties at it may be either way
+                long kth = ranked.get(ranked.size() - 1);
+                exhaustive.forEach((id, count) -> {
+                    if (count > kth) {
+                        assertThat(ids).as(motif + " top " + k).contains(id);
+                    }
+                });
+            }
+        }
+    }
+
+    // Counts the motif of every ALSO_PURCHASED relationship with its Cypher pattern
+    private Map<Long, Long> exhaustiveCounts(String motif) {
+        Map<Long, Long> counts = new HashMap<>();
+        GraphDatabaseService db = neo4j.graph();
+        try (Transaction tx = db.beginTx()) {
+            for (Relationship relationship : db.getAllRelationships()) {
+                if (relationship.isType(RelationshipType.withName("ALSO_PURCHASED"))) {
+                    counts.put(relationship.getId(), (long) FindMotifs.count(db, relationship.getId(), motif));
+                }
+            }
+            tx.success();
+        }
+        return counts;
+    }
+
+    @Test
+    void shouldMergeShards() throws IOException
+    {
+        try( Driver driver = GraphDatabase.driver( neo4j.boltURI() , Config.build().withoutEncryption().toConfig() ) )
+        {
+            Session session = driver.session();
+
+            // When I count the relationships in two shards
+            for (int shard = 0; shard < 2; shard++) {
+                StatementResult result = session.run( "CALL com.maxdemarzi.motifs($type, $file, $config)",
+                        parameters( "type", "ALSO_PURCHASED", "file", "/tmp/also_purchased_sharded.csv",
+                                "config", parameters( "shard", shard, "shards", 2 ) ) );
+                assertThat(result.single().get("value").asString()).contains("also_purchased_sharded-shard" + shard + ".properties");
+            }
+
+            // Then merging them gives every relationship under one header
+            StatementResult result = session.run( "CALL com.maxdemarzi.motifs.merge($manifests, $file)",
+                    parameters( "manifests", asList("/tmp/also_purchased_sharded-shard0.properties",
+                            "/tmp/also_purchased_sharded-shard1.properties"), "file", "/tmp/also_purchased_merged.csv" ) );
+            assertThat(result.single().get("value").asString()).startsWith("Merged 13 rows");
+            List<String> lines = Files.readAllLines(Paths.get("/tmp/also_purchased_merged.csv"));
+            assertThat(lines).hasSize(14);
+            assertThat(lines.stream().filter(line -> line.startsWith("from,"))).hasSize(1);
+
+            // And a missing shard is refused
+            assertThatThrownBy(() -> session.run( "CALL com.maxdemarzi.motifs.merge($manifests, $file)",
+                    parameters( "manifests", singletonList("/tmp/also_purchased_sharded-shard1.properties"),
+                            "file", "/tmp/also_purchased_merged.csv" ) ).consume())
+                    .hasMessageContaining("Shard 0 of 2 is missing");
+        }
+    }
+
+    @Test
+    void shouldNotDescribeFailedShards() throws IOException
+    {
+        try( Driver driver = GraphDatabase.driver( neo4j.boltURI() , Config.build().withoutEncryption().toConfig() ) )
+        {
+            Session session = driver.session();
+            Path manifest = Paths.get("/tmp/also_purchased_failed-shard0.properties");
+            Path blocked = Paths.get(FindMotifs.threadPath("/tmp/also_purchased_failed-shard0.csv", 0));
+            Files.deleteIfExists(blocked);
+
+            // Given a complete shard
+            session.run( "CALL com.maxdemarzi.motifs($type, $file, $config)",
+                    parameters( "type", "ALSO_PURCHASED", "file", "/tmp/also_purchased_failed.csv",
+                            "config", parameters( "shard", 0, "shards", 2 ) ) ).consume();
+            assertThat(manifest).exists();
+
+            // When the first worker can't write its file the next time
+            Files.delete(blocked);
+            Files.createDirectory(blocked);
+            try {
+                assertThatThrownBy(() -> session.run( "CALL com.maxdemarzi.motifs($type, $file, $config)",
+                        parameters( "type", "ALSO_PURCHASED", "file", "/tmp/also_purchased_failed.csv",
+                                "config", parameters( "shard", 0, "shards", 2 ) ) ).consume())
+                        .hasMessageContaining("also_purchased_failed-shard0");
+
+                // Then the run fails and leaves no manifest behind, not even the earlier one
+                assertThat(manifest).doesNotExist();
+            } finally {
+                Files.delete(blocked);
+            }
+        }
+    }
+
+    // The first ALSO_PURCHASED relationship as "from,to", p1 to p2
+    private static String firstRelationship(Session session) {
+        Record record = session.run( "MATCH (a)-[r:ALSO_PURCHASED]->(b) RETURN ID(a) AS from, ID(b) AS to ORDER BY ID(r) LIMIT 1" ).single();
+        return record.get("from").asLong() + "," + record.get("to").asLong();
+    }
+
+    // The rows of every thread's file by "from,to"
+    private static Map<String, String[]> rows(String path) throws IOException {
+        Map<String, String[]> rows = new HashMap<>();
+        for (int thread = 0; thread < Runtime.getRuntime().availableProcessors(); thread++) {
+            List<String> lines = Files.readAllLines(Paths.get(FindMotifs.threadPath(path, thread)));
+            for (String line : lines.subList(1, lines.size())) {
+                String[] fields = line.split(",", -1);
+                rows.put(fields[0] + "," + fields[1], fields);
+            }
+        }
+        return rows;
+    }
+
     private static final String MODEL_STATEMENT =
             "CREATE (p1:Product)" +
             "CREATE (p2:Product)" +
@@ -0,0 +1,115 @@
+package com.maxdemarzi;
+
+import com.maxdemarzi.results.FindMotifs;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class OfflineMotifsTest {
+
+    @Test
+    void shouldCountMotifsFromEdgeList() throws Exception
+    {
+        // Given the five products that all bought each other
+        Path edges = Files.createTempFile("edges", ".csv");
+        Files.write(edges, ("start,end\n" +
+                "1,2\n2,3\n3,4\n4,5\n5,1\n1,3\n3,5\n5,2\n2,4\n4,1\n").getBytes(StandardCharsets.UTF_8));
+        Path output = Files.createTempFile("offline_motifs", ".csv");
+
+        // When I count them on a single thread
+        OfflineMotifs.main(new String[]{edges.toString(), output.toString(), "--threads=1"});
+
+        // Then every relationship sits in three triangles and the one 5-clique
+        String base = output.toString();
+        List<String> lines = Files.readAllLines(new File(base.substring(0, base.lastIndexOf(".")) + "-0.csv").toPath());
+        assertThat(lines).hasSize(11);
+        assertThat(lines.get(0)).startsWith("from,to,m3_1,m3_2").endsWith("m5_21,supernode");
+        assertThat(lines.get(1)).startsWith("1,2,6,3,").endsWith(",1,");
+    }
+
+    @Test
+    void shouldHandleSupernodesFromEdgeList() throws Exception
+    {
+        Path edges = Files.createTempFile("edges", ".csv");
+        Files.write(edges, ("start,end\n" +
+                "1,2\n2,3\n3,4\n4,5\n5,1\n1,3\n3,5\n5,2\n2,4\n4,1\n").getBytes(StandardCharsets.UTF_8));
+        String exact = Files.createTempFile("offline_exact", ".csv").toString();
+        String approximate = Files.createTempFile("offline_approximate", ".csv").toString();
+        String split = Files.createTempFile("offline_split", ".csv").toString();
+
+        // When every product is over the threshold
+        OfflineMotifs.main(new String[]{edges.toString(), exact, "--threads=1"});
+        OfflineMotifs.main(new String[]{edges.toString(), approximate, "--threads=1", "--maxDegree=3", "--supernodeStrategy=approximate"});
+        OfflineMotifs.main(new String[]{edges.toString(), split, "--threads=1", "--maxDegree=3", "--supernodeStrategy=split"});
+
+        // Then approximating gives the exact m3_1, m3_2 and m4_2 of the simple graph, and leaves the rest blank
+        List<String> exactLines = Files.readAllLines(new File(FindMotifs.threadPath(exact, 0)).toPath());
+        List<String> approximateLines = Files.readAllLines(new File(FindMotifs.threadPath(approximate, 0)).toPath());
+        assertThat(exactLines.get(1)).startsWith("1,2,6,3,18,6,");
+        assertThat(approximateLines.get(1)).startsWith("1,2,6,3,,6,,").endsWith(",approximate");
+
+        // And splitting gives every count of the unsplit run
+        List<String> splitLines = Files.readAllLines(new File(FindMotifs.threadPath(split, 0)).toPath());
+        assertThat(splitLines).hasSize(11);
+        for (int i = 1; i < splitLines.size(); i++) {
+            assertThat(splitLines.get(i)).isEqualTo(exactLines.get(i) + "split");
+        }
+    }
+
+    @Test
+    void shouldOnlySkipHeadersWithoutNumbers() throws Exception
+    {
+        // Given an edge list without a header
+        Path edges = Files.createTempFile("edges", ".csv");
+        Files.write(edges, "1,2\n2,3\n1,3\n".getBytes(StandardCharsets.UTF_8));
+        Path output = Files.createTempFile("offline_headerless", ".csv");
+
+        // When I count it
+        OfflineMotifs.main(new String[]{edges.toString(), output.toString(), "--threads=1"});
+
+        // Then the first line is a relationship of the triangle too
+        List<String> lines = Files.readAllLines(new File(FindMotifs.threadPath(output.toString(), 0)).toPath());
+        assertThat(lines).hasSize(4);
+        assertThat(lines.get(1)).startsWith("1,2,2,1,");
+
+        // And a first line with numbers that don't parse is reported instead of dropped
+        for (String first : new String[]{"1\t2", "1,-2"}) {
+            Files.write(edges, (first + "\n2,3\n1,3\n").getBytes(StandardCharsets.UTF_8));
+            assertThatThrownBy(() -> OfflineMotifs.main(new String[]{edges.toString(), output.toString(), "--threads=1"}))
+                    .isInstanceOf(IOException.class)
+                    .hasMessage("Line 0 is not a relationship");
+        }
+    }
+
+    @Test
+    void shouldMergeShardsOfEdgeList() throws Exception
+    {
+        Path edges = Files.createTempFile("edges", ".csv");
+        Files.write(edges, ("start,end\n" +
+                "1,2\n2,3\n3,4\n4,5\n5,1\n1,3\n3,5\n5,2\n2,4\n4,1\n").getBytes(StandardCharsets.UTF_8));
+        Path output = Files.createTempFile("offline_sharded", ".csv");
+        String base = output.toString().substring(0, output.toString().lastIndexOf("."));
+
+        // When three processes each count a shard
+        for (int shard = 0; shard < 3; shard++) {
+            OfflineMotifs.main(new String[]{edges.toString(), output.toString(), "--threads=2", "--shard=" + shard, "--shards=3"});
+        }
+
+        // Then the merged shards hold every relationship once, with the same counts
+        Path merged = Files.createTempFile("offline_merged", ".csv");
+        OfflineMotifs.main(new String[]{"--merge=" + merged, base + "-shard2.properties", base + "-shard0.properties",
+                base + "-shard1.properties"});
+        List<String> lines = Files.readAllLines(merged);
+        assertThat(lines).hasSize(11);
+        assertThat(lines.get(0)).startsWith("from,to,m3_1,m3_2").endsWith("m5_21,supernode");
+        assertThat(lines.subList(1, 11)).allMatch(line -> line.contains(",6,3,") && line.endsWith(",1,"));
+    }
+}